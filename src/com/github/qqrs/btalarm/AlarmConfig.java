@@ -0,0 +1,250 @@
+package com.github.qqrs.btalarm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.content.SharedPreferences;
+
+/**
+ * An immutable snapshot of the app's settings.
+ *
+ * The current snapshot is held by ConfigStore; code reads it with
+ * ConfigStore.get(context).get() instead of reading SharedPreferences, so
+ * handling an alarm never touches the preferences file. To change settings
+ * call ConfigStore.edit(), which works like SharedPreferences.Editor.
+ */
+public final class AlarmConfig {
+
+    private final String mDeviceAddress;
+    private final String mDeviceInfo;
+    private final List<String> mExtraAddresses;
+    private final List<String> mDeviceAddresses;
+    private final boolean mEnabled;
+    private final int mRingStyle;
+    private final long mPrewarmLeadMs;
+    private final long mLastAlarmTime;
+    private final boolean mFirstAppRun;
+
+    AlarmConfig(String deviceAddress, String deviceInfo, List<String> extraAddresses, boolean enabled,
+            int ringStyle, long prewarmLeadMs, long lastAlarmTime, boolean firstAppRun) {
+        mDeviceAddress = deviceAddress;
+        mDeviceInfo = deviceInfo;
+        mExtraAddresses = Collections.unmodifiableList(new ArrayList<String>(extraAddresses));
+        mEnabled = enabled;
+        mRingStyle = ringStyle;
+        mPrewarmLeadMs = prewarmLeadMs;
+        mLastAlarmTime = lastAlarmTime;
+        mFirstAppRun = firstAppRun;
+
+        List<String> addresses = new ArrayList<String>();
+        if (deviceAddress != null) {
+            addresses.add(deviceAddress);
+            for (String address : extraAddresses) {
+                if (!addresses.contains(address)) {
+                    addresses.add(address);
+                }
+            }
+        }
+        mDeviceAddresses = Collections.unmodifiableList(addresses);
+    }
+
+    /**
+     * Read a snapshot from the preferences file.
+     */
+    static AlarmConfig load(SharedPreferences prefs) {
+        List<String> extra = new ArrayList<String>();
+        String joined = prefs.getString(BluetoothAlarm.PREFS_KEY_EXTRA_BLUETOOTH_DEVICE_ADDRESSES, "");
+        for (String address : joined.split(",")) {
+            address = address.trim();
+            if (address.length() > 0) {
+                extra.add(address);
+            }
+        }
+
+        return new AlarmConfig(
+                prefs.getString(BluetoothAlarm.PREFS_KEY_LAST_BLUETOOTH_DEVICE_ADDRESS, null),
+                prefs.getString(BluetoothAlarm.PREFS_KEY_LAST_BLUETOOTH_DEVICE_INFO, null),
+                extra,
+                prefs.getBoolean(BluetoothAlarm.PREFS_KEY_BTALARM_ENABLED, true),
+                prefs.getInt(BluetoothAlarm.PREFS_KEY_RING_STYLE, BluetoothAlarm.RING_STYLE_CONTINUOUS),
+                prefs.getLong(BluetoothAlarm.PREFS_KEY_PREWARM_LEAD_MS, PrewarmScheduler.DEFAULT_LEAD_MS),
+                prefs.getLong(BluetoothAlarm.PREFS_KEY_LAST_ALARM_TIME, 0),
+                prefs.getBoolean(BluetoothAlarm.PREFS_KEY_FIRST_APP_RUN, true));
+    }
+
+    /**
+     * Write every setting of this snapshot to a preferences editor.
+     */
+    void save(SharedPreferences.Editor editor) {
+        StringBuilder extra = new StringBuilder();
+        for (String address : mExtraAddresses) {
+            if (extra.length() > 0) {
+                extra.append(',');
+            }
+            extra.append(address);
+        }
+
+        putOrRemove(editor, BluetoothAlarm.PREFS_KEY_LAST_BLUETOOTH_DEVICE_ADDRESS, mDeviceAddress);
+        putOrRemove(editor, BluetoothAlarm.PREFS_KEY_LAST_BLUETOOTH_DEVICE_INFO, mDeviceInfo);
+        putOrRemove(editor, BluetoothAlarm.PREFS_KEY_EXTRA_BLUETOOTH_DEVICE_ADDRESSES,
+                extra.length() > 0 ? extra.toString() : null);
+        editor.putBoolean(BluetoothAlarm.PREFS_KEY_BTALARM_ENABLED, mEnabled);
+        editor.putInt(BluetoothAlarm.PREFS_KEY_RING_STYLE, mRingStyle);
+        editor.putLong(BluetoothAlarm.PREFS_KEY_PREWARM_LEAD_MS, mPrewarmLeadMs);
+        editor.putLong(BluetoothAlarm.PREFS_KEY_LAST_ALARM_TIME, mLastAlarmTime);
+        editor.putBoolean(BluetoothAlarm.PREFS_KEY_FIRST_APP_RUN, mFirstAppRun);
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value == null) {
+            editor.remove(key);
+        } else {
+            editor.putString(key, value);
+        }
+    }
+
+    /** Address of the selected device, or null if none is selected. */
+    public String getDeviceAddress() {
+        return mDeviceAddress;
+    }
+
+    /** Description of the selected device for display, or null. */
+    public String getDeviceInfo() {
+        return mDeviceInfo;
+    }
+
+    /** Addresses of the devices rung along with the selected one. */
+    public List<String> getExtraAddresses() {
+        return mExtraAddresses;
+    }
+
+    /**
+     * Addresses of all devices to ring: the selected device first, then any
+     * added devices. Empty if no device is selected.
+     */
+    public List<String> getDeviceAddresses() {
+        return mDeviceAddresses;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** One of the BluetoothAlarm.RING_STYLE_* values. */
+    public int getRingStyle() {
+        return mRingStyle;
+    }
+
+    /** How long before the next alarm the connection is opened. */
+    public long getPrewarmLeadMs() {
+        return mPrewarmLeadMs;
+    }
+
+    /** When an alarm last rang, or 0. */
+    public long getLastAlarmTime() {
+        return mLastAlarmTime;
+    }
+
+    public boolean isFirstAppRun() {
+        return mFirstAppRun;
+    }
+
+    /**
+     * A set of changes to apply to the current snapshot, in the style of
+     * SharedPreferences.Editor. Only the settings that were set are
+     * changed, so concurrent edits of different settings do not overwrite
+     * each other.
+     */
+    public static final class Editor {
+        private static final int DEVICE = 1 << 0;
+        private static final int EXTRA = 1 << 1;
+        private static final int ENABLED = 1 << 2;
+        private static final int RING_STYLE = 1 << 3;
+        private static final int PREWARM_LEAD = 1 << 4;
+        private static final int LAST_ALARM = 1 << 5;
+        private static final int FIRST_RUN = 1 << 6;
+
+        private final ConfigStore mStore;
+        private int mChanged = 0;
+        private String mDeviceAddress;
+        private String mDeviceInfo;
+        private List<String> mExtraAddresses;
+        private boolean mEnabled;
+        private int mRingStyle;
+        private long mPrewarmLeadMs;
+        private long mLastAlarmTime;
+        private boolean mFirstAppRun;
+
+        Editor(ConfigStore store) {
+            mStore = store;
+        }
+
+        public Editor setDevice(String address, String info) {
+            mDeviceAddress = address;
+            mDeviceInfo = info;
+            mChanged |= DEVICE;
+            return this;
+        }
+
+        public Editor setExtraAddresses(List<String> addresses) {
+            mExtraAddresses = new ArrayList<String>(addresses);
+            mChanged |= EXTRA;
+            return this;
+        }
+
+        public Editor setEnabled(boolean enabled) {
+            mEnabled = enabled;
+            mChanged |= ENABLED;
+            return this;
+        }
+
+        public Editor setRingStyle(int ringStyle) {
+            mRingStyle = ringStyle;
+            mChanged |= RING_STYLE;
+            return this;
+        }
+
+        public Editor setPrewarmLeadMs(long leadMs) {
+            mPrewarmLeadMs = leadMs;
+            mChanged |= PREWARM_LEAD;
+            return this;
+        }
+
+        public Editor setLastAlarmTime(long time) {
+            mLastAlarmTime = time;
+            mChanged |= LAST_ALARM;
+            return this;
+        }
+
+        public Editor setFirstAppRun(boolean firstAppRun) {
+            mFirstAppRun = firstAppRun;
+            mChanged |= FIRST_RUN;
+            return this;
+        }
+
+        /**
+         * Swap in the changed snapshot right away and write it to the
+         * preferences file in the background.
+         * @return the new snapshot
+         */
+        public AlarmConfig apply() {
+            return mStore.apply(this);
+        }
+
+        /**
+         * Return a copy of a snapshot with these changes.
+         */
+        AlarmConfig applyTo(AlarmConfig c) {
+            return new AlarmConfig(
+                    (mChanged & DEVICE) != 0 ? mDeviceAddress : c.mDeviceAddress,
+                    (mChanged & DEVICE) != 0 ? mDeviceInfo : c.mDeviceInfo,
+                    (mChanged & EXTRA) != 0 ? mExtraAddresses : c.mExtraAddresses,
+                    (mChanged & ENABLED) != 0 ? mEnabled : c.mEnabled,
+                    (mChanged & RING_STYLE) != 0 ? mRingStyle : c.mRingStyle,
+                    (mChanged & PREWARM_LEAD) != 0 ? mPrewarmLeadMs : c.mPrewarmLeadMs,
+                    (mChanged & LAST_ALARM) != 0 ? mLastAlarmTime : c.mLastAlarmTime,
+                    (mChanged & FIRST_RUN) != 0 ? mFirstAppRun : c.mFirstAppRun);
+        }
+    }
+}
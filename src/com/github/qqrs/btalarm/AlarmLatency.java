@@ -0,0 +1,147 @@
+package com.github.qqrs.btalarm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records how long each stage of an alarm takes, from the clock's broadcast
+ * to the RN41 acknowledging the relay command.
+ *
+ * begin() starts a trace when ALARM_ALERT is received; mark() is called as
+ * each stage is reached and records the time since the broadcast and since
+ * the previous stage into per-stage histograms. A stage is only counted once
+ * per trace, and marks outside of a trace are ignored, so the hooks can sit
+ * on paths that are also used when no alarm is ringing.
+ *
+ * Relay commands that are verified by reading the pins back are counted
+ * separately, with the time each read back took and how many needed a
+ * retry, whether or not an alarm is being traced.
+ */
+public class AlarmLatency {
+
+    // Stages of the alarm path, in order
+    public static final int STAGE_BROADCAST_RECEIVED = 0;
+    public static final int STAGE_SERVICE_START = 1;
+    public static final int STAGE_CONNECT_START = 2;
+    public static final int STAGE_SOCKET_CONNECTED = 3;
+    public static final int STAGE_BEGIN_WRITTEN = 4;
+    public static final int STAGE_CMD_ACK = 5;
+    public static final int STAGE_GPIO_WRITTEN = 6;
+    public static final int STAGE_AOK_ACK = 7;
+    public static final int STAGE_COUNT = 8;
+
+    private static final String[] STAGE_NAMES = {
+        "broadcast", "service start", "connect start", "connected",
+        "$$$ written", "CMD ack", "S& written", "AOK ack"
+    };
+
+    private static final LatencyHistogram[] sTotal = new LatencyHistogram[STAGE_COUNT];
+    private static final LatencyHistogram[] sStep = new LatencyHistogram[STAGE_COUNT];
+    private static final LatencyHistogram sVerify = new LatencyHistogram("read back");
+    private static final AtomicLong sVerified = new AtomicLong();
+    private static final AtomicLong sRetried = new AtomicLong();
+    private static final AtomicLong sUnverified = new AtomicLong();
+    static {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            sTotal[i] = new LatencyHistogram(STAGE_NAMES[i]);
+            sStep[i] = new LatencyHistogram(STAGE_NAMES[i]);
+        }
+    }
+
+    // Time each stage was reached in the current trace, 0 if not yet
+    private static final AtomicLongArray sMarks = new AtomicLongArray(STAGE_COUNT);
+    private static volatile boolean sTracing = false;
+
+    /** Start a new trace at the moment the alarm broadcast arrived. */
+    public static void begin() {
+        sTracing = false;
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            sMarks.set(i, 0);
+        }
+        sMarks.set(STAGE_BROADCAST_RECEIVED, System.nanoTime());
+        sTracing = true;
+    }
+
+    /** Stop recording for the current trace. */
+    public static void end() {
+        sTracing = false;
+    }
+
+    public static boolean isTracing() {
+        return sTracing;
+    }
+
+    /** Record that a stage was reached now. */
+    public static void mark(int stage) {
+        if (!sTracing) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (!sMarks.compareAndSet(stage, 0, now)) {
+            return;
+        }
+
+        long start = sMarks.get(STAGE_BROADCAST_RECEIVED);
+        long previous = start;
+        for (int i = stage - 1; i > STAGE_BROADCAST_RECEIVED; i--) {
+            long mark = sMarks.get(i);
+            if (mark != 0) {
+                previous = mark;
+                break;
+            }
+        }
+        sTotal[stage].record((now - start) / 1000);
+        sStep[stage].record((now - previous) / 1000);
+
+        if (stage == STAGE_AOK_ACK) {
+            end();
+        }
+    }
+
+    /** Record how long reading back the pins after an S& took. */
+    public static void recordVerify(long micros) {
+        sVerify.record(micros);
+    }
+
+    /**
+     * Record the outcome of a verified relay command.
+     * @param attempts  How many times it was sent
+     * @param verified  Whether the pins were finally seen as set
+     */
+    public static void recordRelaySet(int attempts, boolean verified) {
+        (verified ? sVerified : sUnverified).incrementAndGet();
+        if (verified && attempts > 1) {
+            sRetried.incrementAndGet();
+        }
+    }
+
+    public static void reset() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            sTotal[i].reset();
+            sStep[i].reset();
+        }
+        sVerify.reset();
+        sVerified.set(0);
+        sRetried.set(0);
+        sUnverified.set(0);
+    }
+
+    /** Multi-line report of all stage histograms. */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Time since broadcast:\n");
+        for (int i = STAGE_SERVICE_START; i < STAGE_COUNT; i++) {
+            sb.append(sTotal[i].summary()).append('\n');
+        }
+        sb.append("\nTime since previous stage:\n");
+        for (int i = STAGE_SERVICE_START; i < STAGE_COUNT; i++) {
+            sb.append(sStep[i].summary()).append('\n');
+        }
+        sb.append("\nRelay verification:\n");
+        sb.append("verified ").append(sVerified.get())
+                .append(", after retry ").append(sRetried.get())
+                .append(", failed ").append(sUnverified.get()).append('\n');
+        sb.append(sVerify.summary()).append('\n');
+        return sb.toString();
+    }
+}
@@ -14,6 +14,8 @@ public class AlarmReceiver extends BroadcastReceiver
 	public static final String ALARM_SNOOZE_ACTION = "com.android.deskclock.ALARM_SNOOZE";
 	public static final String ALARM_DISMISS_ACTION = "com.android.deskclock.ALARM_DISMISS";
 	public static final String ALARM_DONE_ACTION = "com.android.deskclock.ALARM_DONE";
+	// Sent by the clock app whenever the set of enabled alarms changes
+	public static final String ALARM_CHANGED_ACTION = "android.intent.action.ALARM_CHANGED";
 	
 	public static void register(Context context)
 	{
@@ -23,15 +25,27 @@ public class AlarmReceiver extends BroadcastReceiver
 		filter.addAction(ALARM_DISMISS_ACTION);
 		filter.addAction(ALARM_SNOOZE_ACTION);
 		filter.addAction(ALARM_DONE_ACTION);
+		filter.addAction(ALARM_CHANGED_ACTION);
 
 		BtAlarmApplication app = (BtAlarmApplication) context.getApplicationContext();
 
 		context.registerReceiver(app.getAlarmReceiver(), filter);
+
+		PrewarmScheduler.schedule(context);
 	}
 
 	@Override
 	public void onReceive(Context context, Intent intent)
 	{
+		if (ALARM_CHANGED_ACTION.equals(intent.getAction())) {
+			PrewarmScheduler.schedule(context);
+			return;
+		}
+
+		if (ALARM_ALERT_ACTION.equals(intent.getAction())) {
+			AlarmLatency.begin();
+		}
+
 		Intent startServiceIntent = new Intent(context, AlarmRingerService.class);
         startServiceIntent.setAction(intent.getAction());
         context.startService(startServiceIntent);
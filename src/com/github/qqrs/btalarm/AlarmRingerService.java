@@ -1,9 +1,12 @@
 package com.github.qqrs.btalarm;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 import android.app.Service;
-import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
@@ -14,47 +17,185 @@ public class AlarmRingerService extends Service
 	private static final String TAG = "AlarmRingerService";
 	
 	private boolean mIsAlarmActive = false;
+	private boolean mIsPrewarmed = false;
+
+	// One command pipeline per device address, only used on the main thread
+	private final Map<String, RN41CommandPipeline> mPipelines = new HashMap<String, RN41CommandPipeline>();
+	private GpioMonitor mGpioMonitor;
+	// Devices whose command mode session is held by the ringing alarm
+	private final Set<String> mHeldSessions = new HashSet<String>();
+	// Devices that were not connected when the alarm was turned off, to be
+	// turned off when they next connect
+	private final Set<String> mPendingOff = new HashSet<String>();
+
+	private GpioMonitor getGpioMonitor() {
+		if (mGpioMonitor == null) {
+			BtAlarmApplication app = (BtAlarmApplication)getApplicationContext();
+			mGpioMonitor = new GpioMonitor(app.getBluetoothService());
+		}
+		return mGpioMonitor;
+	}
+
+	/**
+	 * Return the command pipeline for a device, creating it if needed.
+	 */
+	private RN41CommandPipeline getPipeline(String address) {
+		RN41CommandPipeline pipeline = mPipelines.get(address);
+		if (pipeline == null) {
+			BtAlarmApplication app = (BtAlarmApplication)getApplicationContext();
+			pipeline = new RN41CommandPipeline(app.getBluetoothService(), address);
+			pipeline.attach();
+			mPipelines.put(address, pipeline);
+			getGpioMonitor().watch(pipeline);
+		}
+		return pipeline;
+	}
 	
 	// onStart is deprecated but onStartCommand does not launch as a foreground process by default 
 	@Override
 	public void onStart(Intent intent, int startid)
 	{
 		String action = intent.getAction();
+		if (AlarmReceiver.ALARM_ALERT_ACTION.equals(action)) {
+			onAlert();
+			return;
+		}
 		Log.d(TAG, "received action: " + action);
 
         // Check if alarm is disabled
-        SharedPreferences settings = getSharedPreferences(BluetoothAlarm.PREFS_NAME, Context.MODE_PRIVATE);
-        if (settings.getBoolean(BluetoothAlarm.PREFS_KEY_BTALARM_ENABLED, true)) {
-			if (action.equals(AlarmReceiver.ALARM_ALERT_ACTION))
+        if (ConfigStore.get(this).get().isEnabled()) {
+			if (action.equals(PrewarmScheduler.ACTION_PREWARM))
 			{
-				turnAlarmOn();
+				prewarm();
 			}
-	
+
 			if (action.equals(AlarmReceiver.ALARM_DISMISS_ACTION) || action.equals(AlarmReceiver.ALARM_SNOOZE_ACTION) || action.equals(AlarmReceiver.ALARM_DONE_ACTION))
 			{
 				turnAlarmOff();
+				PrewarmScheduler.schedule(this);
 			}
         }
+
+		if (PrewarmScheduler.ACTION_PREWARM.equals(action) && !mIsPrewarmed) {
+			// Not pre-warming after all, nothing to stay awake for
+			PrewarmReceiver.releaseWakeLock();
+		}
+	}
+
+	/**
+	 * Fast path for ALARM_ALERT, which may have had to start the service:
+	 * the connect is started before anything else and the rest of the work
+	 * is posted to run after it.
+	 */
+	private void onAlert() {
+		AlarmLatency.mark(AlarmLatency.STAGE_SERVICE_START);
+		if (!ConfigStore.get(this).get().isEnabled()) {
+			return;
+		}
+		turnAlarmOn();
+
+		mAlertTime = System.currentTimeMillis();
+		mHandler.post(mAfterAlert);
+	}
+
+	private long mAlertTime;
+
+	private final Runnable mAfterAlert = new Runnable() {
+		public void run() {
+			Log.d(TAG, "received action: " + AlarmReceiver.ALARM_ALERT_ACTION);
+			PrewarmScheduler.recordAlarm(AlarmRingerService.this, mAlertTime);
+		}
+	};
+
+	/**
+	 * Open the connection ahead of the alarm and hold it idle, so that the
+	 * alert only has to send the relay commands. The wake lock taken by
+	 * PrewarmReceiver is released once connected or when the hold ends.
+	 */
+	private void prewarm() {
+		BtAlarmApplication app = (BtAlarmApplication)getApplicationContext();
+		BluetoothService service = app.getBluetoothService();
+
+		final int state = service.getState();
+		if (mIsAlarmActive || state == BluetoothService.STATE_CONNECTED || state == BluetoothService.STATE_CONNECTING) {
+			return;
+		}
+
+		if (ConfigStore.get(this).get().getDeviceAddresses().isEmpty()) {
+			return;
+		}
+
+		Log.d(TAG, "pre-warming connections");
+		TrafficLog.event(TrafficLog.TYPE_ALARM, null, "prewarm");
+		mIsPrewarmed = true;
+		service.addHandler(mHandler);
+		service.setAutoReconnect(true);
+		service.connect(this);
+
+		// Give up on the connection if the alert never comes
+		mHandler.removeCallbacks(mPrewarmTimeout);
+		mHandler.postDelayed(mPrewarmTimeout, PrewarmScheduler.getHoldMs(this));
 	}
+
+	private boolean isEveryDeviceConnected() {
+		BluetoothService service = ((BtAlarmApplication)getApplicationContext()).getBluetoothService();
+		for (String address : ConfigStore.get(this).get().getDeviceAddresses()) {
+			if (service.getState(address) != BluetoothService.STATE_CONNECTED) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private final Runnable mPrewarmTimeout = new Runnable() {
+		public void run() {
+			if (!mIsPrewarmed || mIsAlarmActive) {
+				return;
+			}
+			Log.d(TAG, "pre-warmed connections not used, disconnecting");
+			mIsPrewarmed = false;
+			PrewarmReceiver.releaseWakeLock();
+
+			BtAlarmApplication app = (BtAlarmApplication)getApplicationContext();
+			BluetoothService service = app.getBluetoothService();
+			if (mPendingOff.isEmpty()) {
+				service.removeHandler(mHandler);
+			}
+			service.setAutoReconnect(false);
+			service.stop();
+			PrewarmScheduler.schedule(AlarmRingerService.this);
+		}
+	};
 	
 	private void turnAlarmOn() {
 		BtAlarmApplication app = (BtAlarmApplication)getApplicationContext();
 		BluetoothService service = app.getBluetoothService();
 		
 		mIsAlarmActive = true;
+		mIsPrewarmed = false;
+		PrewarmReceiver.releaseWakeLock();
+		TrafficLog.event(TrafficLog.TYPE_ALARM, null, "alarm on");
+		getGpioMonitor().setAlarmActive(true);
+		mHandler.removeCallbacks(mPrewarmTimeout);
+		mPendingOff.clear();
 		
-		final int state = service.getState();
-		if (state != BluetoothService.STATE_CONNECTED && state != BluetoothService.STATE_CONNECTING) {
-			
-			SharedPreferences settings = getSharedPreferences(BluetoothAlarm.PREFS_NAME, Context.MODE_PRIVATE);
-            String lastBluetoothDeviceAddress = settings.getString(BluetoothAlarm.PREFS_KEY_LAST_BLUETOOTH_DEVICE_ADDRESS, null);
-            
-            if(lastBluetoothDeviceAddress != null) {
-            	service.addHandler(mHandler);
-                service.connect(this);
-            }
-		} else {
-			sendAlarmOnCmd();
+		// Ring every device: connect the ones that are not connected yet,
+		// they are all connected in parallel and each rings as soon as its
+		// own connection is up. A device that fails or drops out is
+		// reconnected and rung again until the alarm is turned off. Each
+		// device is kept in command mode while the alarm rings.
+		service.addHandler(mHandler);
+		service.setAutoReconnect(true);
+		for (String address : ConfigStore.get(this).get().getDeviceAddresses()) {
+			if (mHeldSessions.add(address)) {
+				getPipeline(address).getSession().hold();
+			}
+			final int state = service.getState(address);
+			if (state == BluetoothService.STATE_CONNECTED) {
+				sendAlarmOnCmd(address);
+			} else if (state != BluetoothService.STATE_CONNECTING) {
+				service.connect(address);
+			}
 		}
 	}
 	
@@ -63,72 +204,118 @@ public class AlarmRingerService extends Service
 		BluetoothService service = app.getBluetoothService();
 		
 		mIsAlarmActive = false;
+		AlarmLatency.end();
+		TrafficLog.event(TrafficLog.TYPE_ALARM, null, "alarm off");
+		getGpioMonitor().setAlarmActive(false);
+		service.setAutoReconnect(false);
 		
-		final int state = service.getState();
-		if (state == BluetoothService.STATE_CONNECTED) {
-			sendAlarmOffCmd();
+		// Stop the ring on every device, connected or not, so that a
+		// device that dropped out does not start ringing again when it
+		// reconnects later. The ones that are not connected are turned
+		// off when they next connect.
+		Set<String> addresses = new HashSet<String>(mHeldSessions);
+		addresses.addAll(ConfigStore.get(this).get().getDeviceAddresses());
+		RingScheduler scheduler = app.getRingScheduler();
+		for (String address : addresses) {
+			scheduler.cancel(address);
+			if (service.getState(address) == BluetoothService.STATE_CONNECTED) {
+				sendAlarmOffCmd(address);
+			} else if (mHeldSessions.contains(address)) {
+				mPendingOff.add(address);
+			}
 		}
+		for (String address : mHeldSessions) {
+			getPipeline(address).getSession().release();
+		}
+		mHeldSessions.clear();
 		
-		service.removeHandler(mHandler);
+		if (mPendingOff.isEmpty()) {
+			service.removeHandler(mHandler);
+		}
 	}
 	
-	private void sendAlarmOnCmd() {
-        SharedPreferences prefs = getSharedPreferences(BluetoothAlarm.PREFS_NAME, Context.MODE_PRIVATE);
-        int ringStyle = prefs.getInt(BluetoothAlarm.PREFS_KEY_RING_STYLE, BluetoothAlarm.RING_STYLE_CONTINUOUS);
-        switch(ringStyle) {
-            case BluetoothAlarm.RING_STYLE_CONTINUOUS:
-            sendMessagesWithDelay(1000, -1, RN41Gpio.CMD_BEGIN, RN41Gpio.CMD_ON);
-                break;
-            case BluetoothAlarm.RING_STYLE_SINGLE_RING:
-            sendMessagesWithDelay(1000, -1, RN41Gpio.CMD_BEGIN, RN41Gpio.CMD_ON, RN41Gpio.CMD_OFF);
-                break;
-            case BluetoothAlarm.RING_STYLE_REPEATED_RING:
-            sendMessagesWithDelay(1000, 1, RN41Gpio.CMD_BEGIN, RN41Gpio.CMD_ON, RN41Gpio.CMD_OFF, RN41Gpio.CMD_OFF, RN41Gpio.CMD_OFF, RN41Gpio.CMD_OFF);
-                break;
-            default:
-                return;
+	private void sendAlarmOnCmd(String address) {
+        RingPattern pattern = RingPattern.forStyle(ConfigStore.get(this).get().getRingStyle());
+        if (pattern != null) {
+            playPattern(address, pattern);
         }
 	}
 	
-	private void sendAlarmOffCmd() {
-		sendMessagesWithDelay(1000, -1, RN41Gpio.CMD_OFF, RN41Gpio.CMD_END, RN41Gpio.CMD_DISCONNECT);
+	private void sendAlarmOffCmd(String address) {
+		sendMessages(address, RN41Gpio.CMD_OFF, RN41Gpio.CMD_END, RN41Gpio.CMD_DISCONNECT);
 	}
-	
-	private void sendMessagesWithDelay(final int delayMs, final int repeatIndex, final int... messages) {
-		Thread alarmThread = new Thread() {
-			@Override
-			public void run() {
-				BtAlarmApplication app = (BtAlarmApplication)getApplicationContext();
-				BluetoothService service = app.getBluetoothService();
-			
-				for (int i = 0; i < messages.length; i++) {
-					if (this != ((BtAlarmApplication)getApplicationContext()).alarmThread) {
-						break;
+
+	/**
+	 * Enter command mode and play a compiled ring pattern on the device's
+	 * RingScheduler lane, replacing any sequence that is still running for
+	 * that device. The device's CommandModeSession is held while the
+	 * pattern plays, so a repeating pattern enters command mode once. Each
+	 * step is sent as soon as the previous one is acknowledged, verified by
+	 * reading the relay pin back (retrying just that step if needed) and
+	 * then held for the step's hold time.
+	 */
+	private void playPattern(final String address, final RingPattern pattern) {
+		BtAlarmApplication app = (BtAlarmApplication)getApplicationContext();
+		final RN41CommandPipeline pipeline = getPipeline(address);
+
+		app.getRingScheduler().start(address, new RingScheduler.Sequence() {
+			public void run(RingScheduler.Token token) throws InterruptedException {
+				CommandModeSession session = pipeline.getSession();
+				session.hold();
+				try {
+					// Only log when the module had to be put in command mode;
+					// the "$$$" itself, if sent, is in the log as a write
+					if (!pipeline.isCommandMode()) {
+						TrafficLog.event(TrafficLog.TYPE_ALARM, address,
+								session.enter() ? "command mode" : "command mode failed");
 					}
-					
-                    if (messages[i] == RN41Gpio.CMD_DISCONNECT) {
-                        service.stop();
-                    } else {
-                        RN41Gpio.sendCmd(app, service, messages[i]);
-                    }
 
-                    // repeat, starting at command with specified index -- otherwise only run the sequence once
-                    if (i == messages.length -1 && repeatIndex >= 0 && repeatIndex < messages.length) {
-                    	i = repeatIndex - 1;
-                    }
-					
-					if (i != messages.length - 1) {
-						try {
-							Thread.sleep(delayMs);
-						} catch (InterruptedException e) {
-							e.printStackTrace();
+					final int last = pattern.size() - 1;
+					final int loopStart = pattern.getLoopStart();
+					for (int i = 0; i <= last; i++) {
+						token.checkCancelled();
+						final int cmd = pattern.getCmd(i);
+						TrafficLog.command(address, cmd, pipeline.executeVerified(cmd));
+
+						if (i < last || loopStart >= 0) {
+							token.sleep(pattern.getHoldMs(i));
+						}
+						if (i == last && loopStart >= 0) {
+							i = loopStart - 1;
 						}
 					}
+				} finally {
+					session.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run a command sequence on the device's RingScheduler lane, replacing
+	 * any sequence that is still running for that device. Each command is
+	 * sent as soon as the module has acknowledged the previous one; relay
+	 * commands are verified like the steps of a ring pattern.
+	 */
+	private void sendMessages(final String address, final int... messages) {
+		BtAlarmApplication app = (BtAlarmApplication)getApplicationContext();
+		final BluetoothService service = app.getBluetoothService();
+		final RN41CommandPipeline pipeline = getPipeline(address);
+
+		app.getRingScheduler().start(address, new RingScheduler.Sequence() {
+			public void run(RingScheduler.Token token) throws InterruptedException {
+				for (int cmd : messages) {
+					token.checkCancelled();
+                    if (cmd == RN41Gpio.CMD_DISCONNECT) {
+                        service.stop(address);
+                    } else {
+                        boolean relay = cmd == RN41Gpio.CMD_ON || cmd == RN41Gpio.CMD_OFF;
+                        TrafficLog.command(address, cmd,
+                                relay ? pipeline.executeVerified(cmd) : pipeline.execute(cmd));
+                    }
 				}
 			}
-		};
-        ((BtAlarmApplication)getApplicationContext()).alarmThread = alarmThread;
-        alarmThread.start();
+		});
 	}
 	
 	// The Handler that gets information back from the BluetoothService
@@ -139,9 +326,21 @@ public class AlarmRingerService extends Service
             case BluetoothService.MESSAGE_STATE_CHANGE:
                 switch (msg.arg1) {
                 case BluetoothService.STATE_CONNECTED:
-                    // check if alarm is still active before sending commands
+                    if (mIsPrewarmed && isEveryDeviceConnected()) {
+                        PrewarmReceiver.releaseWakeLock();
+                    }
+                    // check if alarm is still active before sending commands;
+                    // this is also where a device that was still connecting
+                    // when the alarm went off, e.g. a pre-warm in progress,
+                    // starts to ring
                 	if (mIsAlarmActive) {
-                		sendAlarmOnCmd();
+                		sendAlarmOnCmd((String) msg.obj);
+                	} else if (mPendingOff.remove(msg.obj)) {
+                		sendMessages((String) msg.obj, RN41Gpio.CMD_OFF, RN41Gpio.CMD_END);
+                		if (mPendingOff.isEmpty() && !mIsPrewarmed) {
+                			BtAlarmApplication app = (BtAlarmApplication)getApplicationContext();
+                			app.getBluetoothService().removeHandler(this);
+                		}
                 	}
                     break;
 //                case BluetoothService.STATE_CONNECTING:
@@ -149,10 +348,15 @@ public class AlarmRingerService extends Service
 //                case BluetoothService.STATE_NONE:
                 }
                 break;
+            case BluetoothService.MESSAGE_READ:
+                ((ReadBuffer) msg.obj).release();
+                break;
+            case BluetoothService.MESSAGE_GPIO_CHANGED:
+                Log.d(TAG, msg.obj + ": relay " + ((msg.arg1 & RN41Gpio.PIN_RELAY) != 0 ? "on" : "off"));
+                TrafficLog.gpio((String) msg.obj, msg.arg1);
+                break;
 //            case BluetoothService.MESSAGE_WRITE:
 //                break;
-//            case BluetoothService.MESSAGE_READ:
-//                break;
 //            case BluetoothService.MESSAGE_DEVICE_NAME:
 //                break;
 //            case BluetoothService.MESSAGE_CONNECTION_FAILED:
@@ -171,8 +375,18 @@ public class AlarmRingerService extends Service
     @Override
     public void onDestroy() {
         super.onDestroy();
+        PrewarmReceiver.releaseWakeLock();
+
+        for (RN41CommandPipeline pipeline : mPipelines.values()) {
+            pipeline.detach();
+        }
+        mPipelines.clear();
+        mHeldSessions.clear();
+        if (mGpioMonitor != null) {
+            mGpioMonitor.shutdown();
+        }
 
-        ((BtAlarmApplication)getApplicationContext()).alarmThread = null;
+        ((BtAlarmApplication)getApplicationContext()).getRingScheduler().cancel();
     }
 
 }
@@ -16,10 +16,12 @@
 
 package com.github.qqrs.btalarm;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -46,14 +48,19 @@ public class BluetoothAlarm extends Activity {
     // Intent request codes
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 2;
     private static final int REQUEST_ENABLE_BT = 3;
+    private static final int REQUEST_ADD_DEVICE = 4;
 
     // Preferences file name
     public static final String PREFS_NAME = "btalarm_prefs";
     public static final String PREFS_KEY_LAST_BLUETOOTH_DEVICE_ADDRESS = "lastBluetoothDeviceAddress";
     public static final String PREFS_KEY_LAST_BLUETOOTH_DEVICE_INFO = "lastBluetoothDeviceInfo";
+    // Comma separated addresses of the devices rung along with the selected one
+    public static final String PREFS_KEY_EXTRA_BLUETOOTH_DEVICE_ADDRESSES = "extraBluetoothDeviceAddresses";
     public static final String PREFS_KEY_BTALARM_ENABLED = "btalarmEnabled";
     public static final String PREFS_KEY_RING_STYLE = "ringStyle";
-    private static final String PREFS_KEY_FIRST_APP_RUN = "firstAppRun";
+    public static final String PREFS_KEY_PREWARM_LEAD_MS = "prewarmLeadMs";
+    public static final String PREFS_KEY_LAST_ALARM_TIME = "lastAlarmTime";
+    public static final String PREFS_KEY_FIRST_APP_RUN = "firstAppRun";
 
     // Ring style values
     public static final int RING_STYLE_CONTINUOUS = 0;
@@ -74,21 +81,21 @@ public class BluetoothAlarm extends Activity {
         setContentView(R.layout.main);
         
         // Register the alarm receiver if this is the first time the app runs
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        boolean isFirstTime = prefs.getBoolean(PREFS_KEY_FIRST_APP_RUN, true);
-        if (isFirstTime) {
+        ConfigStore store = ConfigStore.get(this);
+        if (store.get().isFirstAppRun()) {
         	AlarmReceiver.register(this);
-            SharedPreferences.Editor editor = prefs.edit();
-            editor.putBoolean(PREFS_KEY_FIRST_APP_RUN, false);
-        	editor.putBoolean(PREFS_KEY_BTALARM_ENABLED, true);
-        	editor.putInt(PREFS_KEY_RING_STYLE, RING_STYLE_CONTINUOUS);
-            editor.commit();
+            store.edit()
+                .setFirstAppRun(false)
+                .setEnabled(true)
+                .setRingStyle(RING_STYLE_CONTINUOUS)
+                .apply();
         }
+        AlarmConfig config = store.get();
 
         Switch sw = (Switch)findViewById(R.id.switch_enabled);
-        sw.setChecked(prefs.getBoolean(PREFS_KEY_BTALARM_ENABLED, true));
+        sw.setChecked(config.isEnabled());
 
-        int ringStyle = prefs.getInt(PREFS_KEY_RING_STYLE, RING_STYLE_CONTINUOUS);
+        int ringStyle = config.getRingStyle();
         int activeRadioId;
         switch(ringStyle) {
             case RING_STYLE_CONTINUOUS:
@@ -107,13 +114,7 @@ public class BluetoothAlarm extends Activity {
         RadioButton active_radio = (RadioButton)findViewById(activeRadioId);
         active_radio.setChecked(true);
 
-        TextView textBtName = (TextView)findViewById(R.id.text_btname);
-        String btInfo = prefs.getString(PREFS_KEY_LAST_BLUETOOTH_DEVICE_INFO, null);
-        if (btInfo == null) {
-            textBtName.setText("no device selected");
-        } else {
-            textBtName.setText(btInfo);
-        }
+        updateDeviceText();
 
         // If the adapter is null, then Bluetooth is not supported
         if (BluetoothAdapter.getDefaultAdapter() == null) {
@@ -167,8 +168,7 @@ public class BluetoothAlarm extends Activity {
         mService.addHandler(mHandler);
 
         if (mService.getState() != BluetoothService.STATE_CONNECTED) {
-        	SharedPreferences settings = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-            String lastBluetoothDeviceAddress = settings.getString(PREFS_KEY_LAST_BLUETOOTH_DEVICE_ADDRESS, null);
+            String lastBluetoothDeviceAddress = ConfigStore.get(this).get().getDeviceAddress();
             if(D) Log.e(TAG, "lastBluetoothDeviceAddress: " + lastBluetoothDeviceAddress);
             if(lastBluetoothDeviceAddress == null) {
                 // No saved Bluetooth device -- show the device list
@@ -182,8 +182,8 @@ public class BluetoothAlarm extends Activity {
         int id = btn.getId();
         Intent intent = null;
         
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        if (!prefs.getBoolean(PREFS_KEY_BTALARM_ENABLED, true)) {
+        AlarmConfig config = ConfigStore.get(this).get();
+        if (!config.isEnabled()) {
             Toast.makeText(this, "Bluetooth Alarm service is disabled.", Toast.LENGTH_SHORT).show();
             return;
         }
@@ -197,6 +197,17 @@ public class BluetoothAlarm extends Activity {
             intent = new Intent(this, DeviceListActivity.class);
             startActivityForResult(intent, REQUEST_CONNECT_DEVICE_INSECURE);
             break;
+        case R.id.button_add_device:
+            if (config.getDeviceAddress() == null) {
+                Toast.makeText(this, "Select a device first.", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            intent = new Intent(this, DeviceListActivity.class);
+            startActivityForResult(intent, REQUEST_ADD_DEVICE);
+            break;
+        case R.id.button_clear_devices:
+            clearExtraDevices();
+            break;
         }
     }
 
@@ -224,10 +235,7 @@ public class BluetoothAlarm extends Activity {
                 return;
         }
 
-        SharedPreferences settings = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        SharedPreferences.Editor editor = settings.edit();
-        editor.putInt(PREFS_KEY_RING_STYLE, ringStyle);
-        editor.commit();
+        ConfigStore.get(this).edit().setRingStyle(ringStyle).apply();
     }
 
     public void onSwitchClicked(View view) {
@@ -243,10 +251,9 @@ public class BluetoothAlarm extends Activity {
             }
         }
 
-        SharedPreferences settings = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        SharedPreferences.Editor editor = settings.edit();
-        editor.putBoolean(PREFS_KEY_BTALARM_ENABLED, checked);
-        editor.commit();
+        ConfigStore.get(this).edit().setEnabled(checked).apply();
+
+        PrewarmScheduler.schedule(this);
     }
 
     @Override
@@ -295,6 +302,7 @@ public class BluetoothAlarm extends Activity {
             case BluetoothService.MESSAGE_WRITE:
                 break;
             case BluetoothService.MESSAGE_READ:
+                ((ReadBuffer) msg.obj).release();
                 break;
             case BluetoothService.MESSAGE_DEVICE_NAME:
                 // save the connected device's name
@@ -323,6 +331,12 @@ public class BluetoothAlarm extends Activity {
                 selectDevice(data);
             }
             break;
+        case REQUEST_ADD_DEVICE:
+            // When DeviceListActivity returns with another device to ring
+            if (resultCode == Activity.RESULT_OK) {
+                addDevice(data);
+            }
+            break;
         case REQUEST_ENABLE_BT:
             // When the request to enable Bluetooth returns
             if (resultCode == Activity.RESULT_OK) {
@@ -345,18 +359,59 @@ public class BluetoothAlarm extends Activity {
             .getString(DeviceListActivity.EXTRA_DEVICE_INFO);
 
         // Store and persist address as last Bluetooth device
-        SharedPreferences settings = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        SharedPreferences.Editor editor = settings.edit();
-        editor.putString(PREFS_KEY_LAST_BLUETOOTH_DEVICE_ADDRESS, address);
-        editor.putString(PREFS_KEY_LAST_BLUETOOTH_DEVICE_INFO, info);
-        editor.commit();
+        ConfigStore.get(this).edit().setDevice(address, info).apply();
+
+        PrewarmScheduler.schedule(this);
 
         // Update TextView showing selected device
+        updateDeviceText();
+    }
+
+    private void addDevice(Intent data) {
+        String address = data.getExtras()
+            .getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
+
+        ConfigStore store = ConfigStore.get(this);
+        AlarmConfig config = store.get();
+        if (config.getDeviceAddresses().contains(address)) {
+            Toast.makeText(this, "Device already added", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        List<String> extra = new ArrayList<String>(config.getExtraAddresses());
+        extra.add(address);
+        store.edit().setExtraAddresses(extra).apply();
+
+        updateDeviceText();
+    }
+
+    private void clearExtraDevices() {
+        ConfigStore store = ConfigStore.get(this);
+        List<String> extra = store.get().getExtraAddresses();
+        store.edit().setExtraAddresses(new ArrayList<String>()).apply();
+
+        // Disconnect the devices that are no longer rung
+        if (mService != null) {
+            for (String address : extra) {
+                mService.stop(address);
+            }
+        }
+
+        updateDeviceText();
+    }
+
+    private void updateDeviceText() {
+        AlarmConfig config = ConfigStore.get(this).get();
         TextView textBtName = (TextView)findViewById(R.id.text_btname);
-        if (info == null) {
+        String btInfo = config.getDeviceInfo();
+        if (btInfo == null) {
             textBtName.setText("no device selected");
+            return;
+        }
+        int extra = config.getDeviceAddresses().size() - 1;
+        if (extra > 0) {
+            textBtName.setText(btInfo + "\n+ " + extra + " more device" + (extra == 1 ? "" : "s"));
         } else {
-            textBtName.setText(info);
+            textBtName.setText(btInfo);
         }
     }
 
@@ -16,18 +16,24 @@
 
 package com.github.qqrs.btalarm;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Date;
+
 import android.app.ActionBar;
 import android.app.Activity;
-import android.content.SharedPreferences;
+import android.app.AlertDialog;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 import android.view.KeyEvent;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.inputmethod.EditorInfo;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
@@ -54,12 +60,14 @@ public class BluetoothDebugActivity extends Activity {
 
     // Name of the connected device
     private String mConnectedDeviceName = null;
-    // Array adapter for the conversation thread
-    private ArrayAdapter<String> mConversationArrayAdapter;
+    // Adapter for the conversation thread
+    private ConversationAdapter mConversationAdapter;
     // String buffer for outgoing messages
     private StringBuffer mOutStringBuffer;
     // Member object for the chat services
     private BluetoothService mService = null;
+    // Address of the device being debugged, the selected device
+    private String mAddress = null;
     
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -77,20 +85,17 @@ public class BluetoothDebugActivity extends Activity {
         mService = app.getBluetoothService();
         mService.addHandler(mHandler);
 
-        if (mService.getState() == BluetoothService.STATE_CONNECTED ) {
+        mAddress = app.getConfigStore().get().getDeviceAddress();
+
+        if (mAddress == null) {
+            Toast.makeText(this, "No Bluetooth device selected", Toast.LENGTH_SHORT).show();
+            finish();
+        } else if (mService.getState(mAddress) == BluetoothService.STATE_CONNECTED ) {
             setupDebugActivity();
-        } else if (mService.getState() == BluetoothService.STATE_CONNECTING) {
+        } else if (mService.getState(mAddress) == BluetoothService.STATE_CONNECTING) {
             // wait for service to finish connecting
         } else {
-            SharedPreferences prefs = app.getSharedPreferences(BluetoothAlarm.PREFS_NAME, BluetoothAlarm.MODE_PRIVATE);
-            String lastBluetoothDeviceAddress = prefs.getString(BluetoothAlarm.PREFS_KEY_LAST_BLUETOOTH_DEVICE_ADDRESS, null);
-
-            if (lastBluetoothDeviceAddress == null) {
-                Toast.makeText(this, "No Bluetooth device selected", Toast.LENGTH_SHORT).show();
-                finish();
-            } else {
-                mService.connect(this);
-            }
+            mService.connect(mAddress);
         }
     }
 
@@ -106,10 +111,17 @@ public class BluetoothDebugActivity extends Activity {
         // Set up the window layout
         setContentView(R.layout.debug);
 
-        // Initialize the array adapter for the conversation thread
-        mConversationArrayAdapter = new ArrayAdapter<String>(this, R.layout.message);
+        // Initialize the adapter for the conversation thread
+        boolean hex = false;
+        if (mConversationAdapter != null) {
+            hex = mConversationAdapter.isHex();
+            mConversationAdapter.cancelUpdate();
+        }
+        mConversationAdapter = new ConversationAdapter(this, R.layout.message);
+        mConversationAdapter.setRemoteName(mConnectedDeviceName);
+        mConversationAdapter.setHex(hex);
         mConversationView = (ListView) findViewById(R.id.in);
-        mConversationView.setAdapter(mConversationArrayAdapter);
+        mConversationView.setAdapter(mConversationAdapter);
 
         // Initialize the compose field with a listener for the return key
         mOutEditText = (EditText) findViewById(R.id.edit_text_out);
@@ -131,7 +143,7 @@ public class BluetoothDebugActivity extends Activity {
     }
     
     public void onBtnClicked(View btn) {
-        if (mService.getState() != BluetoothService.STATE_CONNECTED) {
+        if (mService.getState(mAddress) != BluetoothService.STATE_CONNECTED) {
 			Toast.makeText(this, "Bluetooth device not connected", Toast.LENGTH_SHORT).show();
             return;
         }
@@ -159,7 +171,161 @@ public class BluetoothDebugActivity extends Activity {
             return;
         }
         
-        RN41Gpio.sendCmd(this, mService, command);
+        RN41Gpio.sendCmd(mService, mAddress, command);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.debug_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+        case R.id.menu_latency:
+            new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_latency)
+                .setMessage(AlarmLatency.report() + "\n"
+                        + mService.getReconnectPolicy().report() + "\n"
+                        + getDeviceProfiles().report())
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+            return true;
+        case R.id.menu_latency_save:
+            saveLatencyReport();
+            return true;
+        case R.id.menu_hex:
+            if (mConversationAdapter != null) {
+                mConversationAdapter.setHex(!mConversationAdapter.isHex());
+            }
+            return true;
+        case R.id.menu_traffic_save:
+            saveTrafficLog();
+            return true;
+        case R.id.menu_benchmark:
+            runBenchmarks();
+            return true;
+        case R.id.menu_latency_reset:
+            AlarmLatency.reset();
+            mService.getReconnectPolicy().resetStats();
+            getDeviceProfiles().resetStats();
+            return true;
+        }
+        return false;
+    }
+
+    private DeviceProfileCache getDeviceProfiles() {
+        return ((BtAlarmApplication) getApplication()).getDeviceProfiles();
+    }
+
+    /**
+     * Run the hot path benchmarks on a background thread and show the
+     * results when they are done.
+     */
+    private void runBenchmarks() {
+        Toast.makeText(this, R.string.benchmark_running, Toast.LENGTH_SHORT).show();
+        new Thread("HotPathBenchmark") {
+            public void run() {
+                final String report = HotPathBenchmark.run();
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        new AlertDialog.Builder(BluetoothDebugActivity.this)
+                            .setTitle(R.string.menu_benchmark)
+                            .setMessage(report)
+                            .setPositiveButton(android.R.string.ok, null)
+                            .show();
+                    }
+                });
+            }
+        }.start();
+    }
+
+    /**
+     * Decode the traffic log into a text file next to the latency report,
+     * on a background thread since the log holds thousands of records.
+     */
+    private void saveTrafficLog() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        final File in = new File(getFilesDir(), TrafficLog.FILE_NAME);
+        final File out = new File(dir, "traffic.txt");
+        new Thread("TrafficLog") {
+            public void run() {
+                boolean saved = false;
+                FileWriter writer = null;
+                try {
+                    String text = TrafficLog.decode(in);
+                    writer = new FileWriter(out);
+                    writer.write(text);
+                    saved = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "unable to save traffic log", e);
+                } finally {
+                    if (writer != null) {
+                        try {
+                            writer.close();
+                        } catch (IOException e) {
+                            Log.e(TAG, "close() of traffic log failed", e);
+                            saved = false;
+                        }
+                    }
+                }
+
+                final boolean ok = saved;
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        if (ok) {
+                            Toast.makeText(BluetoothDebugActivity.this,
+                                    getString(R.string.traffic_saved, out.getPath()), Toast.LENGTH_LONG).show();
+                        } else {
+                            Toast.makeText(BluetoothDebugActivity.this,
+                                    R.string.traffic_save_failed, Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
+            }
+        }.start();
+    }
+
+    /**
+     * Append the latency report to a file in the app's external files
+     * directory so that it can be pulled off the phone.
+     */
+    private void saveLatencyReport() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        File file = new File(dir, "latency.txt");
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(file, true);
+            writer.write("=== " + new Date() + " ===\n");
+            writer.write(AlarmLatency.report());
+            writer.write("\n");
+            writer.write(mService.getReconnectPolicy().report());
+            writer.write("\n");
+            writer.write(getDeviceProfiles().report());
+            writer.write("\n");
+            Toast.makeText(this, getString(R.string.latency_saved, file.getPath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(TAG, "unable to save latency report", e);
+            Toast.makeText(this, R.string.latency_save_failed, Toast.LENGTH_SHORT).show();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of latency report failed", e);
+                }
+            }
+        }
     }
 
     @Override
@@ -174,7 +340,12 @@ public class BluetoothDebugActivity extends Activity {
         if(D) Log.e(TAG, "-- ON STOP --");
         
         mService.removeHandler(mHandler);
-        mService.stop();        // disconnect from Bluetooth device
+        if (mConversationAdapter != null) {
+            mConversationAdapter.cancelUpdate();
+        }
+        if (mAddress != null) {
+            mService.stop(mAddress);        // disconnect from Bluetooth device
+        }
         mService = null;
     }
 
@@ -190,7 +361,7 @@ public class BluetoothDebugActivity extends Activity {
      */
     private void sendMessage(String message) {
         // Check that we're actually connected before trying anything
-        if (mService.getState() != BluetoothService.STATE_CONNECTED) {
+        if (mService.getState(mAddress) != BluetoothService.STATE_CONNECTED) {
             Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
             return;
         }
@@ -199,7 +370,7 @@ public class BluetoothDebugActivity extends Activity {
         if (message.length() > 0) {
             // Get the message bytes and tell the BluetoothService to write
             byte[] send = message.getBytes();
-            mService.write(send);
+            mService.write(mAddress, send);
 
             // Reset out string buffer to zero and clear the edit text field
             mOutStringBuffer.setLength(0);
@@ -231,10 +402,37 @@ public class BluetoothDebugActivity extends Activity {
         actionBar.setSubtitle(subTitle);
     }
 
+    /**
+     * Return whether a message from the BluetoothService is about the device
+     * being debugged rather than one of the other devices.
+     */
+    private boolean isForDevice(Message msg) {
+        String address;
+        switch (msg.what) {
+        case BluetoothService.MESSAGE_STATE_CHANGE:
+        case BluetoothService.MESSAGE_CONNECTION_FAILED:
+        case BluetoothService.MESSAGE_CONNECTION_LOST:
+        case BluetoothService.MESSAGE_GPIO_CHANGED:
+            address = (String) msg.obj;
+            break;
+        default:
+            address = msg.peekData() == null ? null
+                    : msg.peekData().getString(BluetoothService.DEVICE_ADDRESS);
+            break;
+        }
+        return address == null || address.equals(mAddress);
+    }
+
     // The Handler that gets information back from the BluetoothService
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
+            if (!isForDevice(msg)) {
+                if (msg.what == BluetoothService.MESSAGE_READ) {
+                    ((ReadBuffer) msg.obj).release();
+                }
+                return;
+            }
             switch (msg.what) {
             case BluetoothService.MESSAGE_STATE_CHANGE:
                 if(D) Log.i(TAG, "MESSAGE_STATE_CHANGE: " + msg.arg1);
@@ -242,7 +440,7 @@ public class BluetoothDebugActivity extends Activity {
                 case BluetoothService.STATE_CONNECTED:
                     setupDebugActivity();
                     setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
-                    mConversationArrayAdapter.clear();
+                    mConversationAdapter.clear();
                     break;
                 case BluetoothService.STATE_CONNECTING:
                     setStatus(R.string.title_connecting);
@@ -255,19 +453,21 @@ public class BluetoothDebugActivity extends Activity {
                 break;
             case BluetoothService.MESSAGE_WRITE:
                 byte[] writeBuf = (byte[]) msg.obj;
-                // construct a string from the buffer
-                String writeMessage = new String(writeBuf);
-                mConversationArrayAdapter.add("Me:  " + writeMessage);
+                mConversationAdapter.add(true, writeBuf, 0, writeBuf.length);
                 break;
             case BluetoothService.MESSAGE_READ:
-                byte[] readBuf = (byte[]) msg.obj;
-                // construct a string from the valid bytes in the buffer
-                String readMessage = new String(readBuf, 0, msg.arg1);
-                mConversationArrayAdapter.add(mConnectedDeviceName+":  " + readMessage);
+                ReadBuffer readBuf = (ReadBuffer) msg.obj;
+                // the adapter copies the valid bytes, so the buffer can be
+                // released right away
+                mConversationAdapter.add(false, readBuf.data, 0, readBuf.length());
+                readBuf.release();
                 break;
             case BluetoothService.MESSAGE_DEVICE_NAME:
                 // save the connected device's name
                 mConnectedDeviceName = msg.getData().getString(DEVICE_NAME);
+                if (mConversationAdapter != null) {
+                    mConversationAdapter.setRemoteName(mConnectedDeviceName);
+                }
                 Toast.makeText(getApplicationContext(), "Connected to "
                                + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
                 break;
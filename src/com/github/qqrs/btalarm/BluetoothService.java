@@ -19,15 +19,17 @@ package com.github.qqrs.btalarm;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -35,9 +37,20 @@ import android.util.Log;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread that listens for
- * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * connections with other devices. Each device address has its own
+ * connection, with a thread for connecting with the device and a thread
+ * for performing data transmissions when connected, so several relay
+ * boards can be connected and driven at the same time.
+ *
+ * Messages about a single connection (MESSAGE_STATE_CHANGE,
+ * MESSAGE_READ, MESSAGE_WRITE, MESSAGE_CONNECTION_FAILED,
+ * MESSAGE_CONNECTION_LOST and MESSAGE_GPIO_CHANGED) carry the device
+ * address; for MESSAGE_READ and MESSAGE_WRITE it is in the
+ * "device_address" entry of the message data.
+ *
+ * While auto reconnect is enabled, a device whose connection attempt fails
+ * or whose connection is lost is connected again according to the
+ * ReconnectPolicy; in between it stays in STATE_LISTEN.
  */
 public class BluetoothService {
 	
@@ -55,208 +68,598 @@ public class BluetoothService {
     public static final int MESSAGE_TOAST = 5;
     public static final int MESSAGE_CONNECTION_FAILED = 6;
     public static final int MESSAGE_CONNECTION_LOST = 7;
+    public static final int MESSAGE_GPIO_CHANGED = 8;
+
+    // Key names in the data of messages sent to the Handlers
+    public static final String DEVICE_ADDRESS = "device_address";
 	
     // Debugging
     private static final String TAG = "BluetoothService";
 
     private static final boolean D = true;
-    // UUID for Bluetooth Serial Port Profile (SPP)
-    private static final UUID MY_UUID_INSECURE =
-    	UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 
     // Member fields
-    private final BluetoothAdapter mAdapter;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
+    private volatile SerialTransport.Factory mTransportFactory;
+    // Whether traffic goes into the process-wide TrafficLog
+    private volatile boolean mTrafficLogged = true;
+
+    // Reconnect timing and metrics, shared by all devices
+    private final ReconnectPolicy mReconnectPolicy = new ReconnectPolicy();
+    private volatile boolean mAutoReconnect = false;
+    // Created when the first reconnect is scheduled and shut down by stop(),
+    // guarded by this
+    private ScheduledExecutorService mReconnectTimer;
+
+    // One connection per device address, see Connection for locking
+    private final ConcurrentHashMap<String, Connection> mConnections = new ConcurrentHashMap<String, Connection>();
     
-    private List<Handler> mHandlers;
+    // Handlers are weakly held, see ListenerRegistry
+    private final ListenerRegistry<Handler> mHandlers = new ListenerRegistry<Handler>();
+    private final ListenerRegistry<ReadListener> mReadListeners = new ListenerRegistry<ReadListener>();
+
+    /**
+     * Receives the bytes read from a connected device directly on that
+     * device's connection thread. The buffer is only valid for the duration
+     * of the call and the listener must return quickly.
+     */
+    public interface ReadListener {
+        void onRead(String address, byte[] buffer, int length);
+    }
 
 
     /**
-     * Constructor. Prepares a new BluetoothAlarm session.
+     * Constructor. Prepares a new BluetoothAlarm session that connects over
+     * RFCOMM, using the application's DeviceProfileCache.
      * @param context  The UI Activity Context
-     * @param handler  A Handler to send messages back to the UI Activity
      */
     public BluetoothService(Context context) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
+        this(new RfcommTransport.Factory(
+                ((BtAlarmApplication) context.getApplicationContext()).getDeviceProfiles()));
+    }
+
+    /**
+     * Constructor. Prepares a new BluetoothAlarm session that connects
+     * through the given transport, e.g. an RN41Simulator.Factory.
+     * @param factory  Creates the transport for each connection attempt
+     */
+    public BluetoothService(SerialTransport.Factory factory) {
+        mTransportFactory = factory;
+    }
+
+    /**
+     * Replace the transport used for subsequent connections.
+     * @param factory  Creates the transport for each connection attempt
+     */
+    public void setTransportFactory(SerialTransport.Factory factory) {
+        mTransportFactory = factory;
+    }
+
+    /**
+     * Keep this service's traffic out of the TrafficLog, e.g. for a service
+     * that only talks to simulators, so that it does not overwrite the
+     * record of the real devices.
+     */
+    public void setTrafficLogged(boolean logged) {
+        mTrafficLogged = logged;
     }
     
+    /**
+     * Register a Handler for messages from this service. The service only
+     * keeps a weak reference, so a Handler whose Activity is gone without
+     * calling removeHandler() is dropped automatically.
+     */
     public void addHandler(Handler handler) {
-
-		if (mHandlers == null) {
-			mHandlers = new ArrayList<Handler>();
-		}
-		
 		mHandlers.add(handler);
 	}
     
     public void removeHandler(Handler handler) {
-
 		mHandlers.remove(handler);
 	}
-    
-    public void connect(Context context) {
-    	SharedPreferences prefs = context.getSharedPreferences(BluetoothAlarm.PREFS_NAME, BluetoothAlarm.MODE_PRIVATE);
-        String lastBluetoothDeviceAddress = prefs.getString(BluetoothAlarm.PREFS_KEY_LAST_BLUETOOTH_DEVICE_ADDRESS, null);
-        
-        // Get the BluetoothDevice object
-        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(lastBluetoothDeviceAddress);
-        // Attempt to connect to the device
-        connect(device);
-    }
 
     /**
-     * Set the current state of the chat connection
-     * @param state  An integer defining the current connection state
+     * Register a listener that sees every read on the connection threads.
+     * Like Handlers, listeners are only weakly referenced.
      */
-    private synchronized void setState(int state) {
-        if (D) Log.d(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
+    public void addReadListener(ReadListener listener) {
+        mReadListeners.add(listener);
+    }
 
-        // Give the new state to the Handler so the UI Activity can update
-        for (Handler handler : mHandlers) {
-			
-        	handler.obtainMessage(MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
-		}
+    public void removeReadListener(ReadListener listener) {
+        mReadListeners.remove(listener);
     }
 
     /**
-     * Return the current connection state. */
-    public synchronized int getState() {
-        return mState;
+     * Tell the Handlers that a GpioMonitor saw a device's pins change:
+     * MESSAGE_GPIO_CHANGED with the new pin values in arg1, the previous
+     * ones or -1 in arg2 and the address in obj.
+     */
+    void notifyGpioChanged(String address, int previous, int value) {
+        sendToHandlers(MESSAGE_GPIO_CHANGED, value, previous, address);
     }
 
     /**
-     * Start the chat service.  Called by the Activity onResume() */
-    public synchronized void start() {
-        if (D) Log.d(TAG, "start");
+     * Send a message to every registered Handler. Safe to call from any
+     * thread while Handlers are being added or removed.
+     */
+    private void sendToHandlers(int what, int arg1, int arg2, Object obj) {
+        boolean stale = false;
+        for (WeakReference<Handler> ref : mHandlers.entries()) {
+            Handler handler = ref.get();
+            if (handler == null) {
+                stale = true;
+                continue;
+            }
+            handler.obtainMessage(what, arg1, arg2, obj).sendToTarget();
+        }
+        if (stale) {
+            mHandlers.prune();
+        }
+    }
 
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
+    /**
+     * Connect to every configured device at once.
+     * @see AlarmConfig#getDeviceAddresses()
+     */
+    public void connect(Context context) {
+        // Attempt to connect to the devices, each on its own thread
+        for (String address : ConfigStore.get(context).get().getDeviceAddresses()) {
+            connect(address);
+        }
+    }
+
+    /**
+     * Enable or disable reconnecting after a failed attempt or a lost
+     * connection, e.g. for as long as an alarm is ringing. Disabling it
+     * cancels all pending reconnects.
+     */
+    public void setAutoReconnect(boolean enabled) {
+        if (D) Log.d(TAG, "setAutoReconnect " + enabled);
+        mAutoReconnect = enabled;
+        if (!enabled) {
+            for (Connection connection : mConnections.values()) {
+                connection.cancelReconnect();
+            }
+        }
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
+    public boolean isAutoReconnect() {
+        return mAutoReconnect;
+    }
 
-        setState(STATE_LISTEN);
+    public ReconnectPolicy getReconnectPolicy() {
+        return mReconnectPolicy;
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
-     * @param device  The BluetoothDevice to connect
+     * Return the connection for an address, creating it if needed.
      */
-    private synchronized void connect(BluetoothDevice device) {
-        if (D) Log.d(TAG, "connect to: " + device);
+    private Connection getConnection(String address) {
+        Connection connection = mConnections.get(address);
+        if (connection == null) {
+            Connection created = new Connection(address);
+            connection = mConnections.putIfAbsent(address, created);
+            if (connection == null) {
+                connection = created;
+            }
+        }
+        return connection;
+    }
 
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
+    /**
+     * Return the combined connection state: the most advanced state of any
+     * device, e.g. STATE_CONNECTED if at least one device is connected. */
+    public int getState() {
+        int state = STATE_NONE;
+        for (Connection connection : mConnections.values()) {
+            state = Math.max(state, connection.mState);
         }
+        return state;
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
+    /**
+     * Return the connection state of one device. */
+    public int getState(String address) {
+        Connection connection = mConnections.get(address);
+        return connection == null ? STATE_NONE : connection.mState;
+    }
 
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device);
-        mConnectThread.start();
-        setState(STATE_CONNECTING);
+    /**
+     * The mode a connected module is in, as one of the ModuleShadow.MODE_*
+     * values; MODE_UNKNOWN if it is not connected.
+     */
+    public int getModuleMode(String address) {
+        ModuleShadow shadow = getShadow(address);
+        return shadow == null ? ModuleShadow.MODE_UNKNOWN : shadow.getMode();
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
-     * @param socket  The BluetoothSocket on which the connection was made
-     * @param device  The BluetoothDevice that has been connected
+     * Whether writing a command to a connected module would leave its mode
+     * and pins as they are, so that it need not be sent.
+     * @see ModuleShadow#isRedundant(byte[])
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
-        if (D) Log.d(TAG, "connected, Socket Type:" + socketType);
+    public boolean isRedundant(String address, byte[] command) {
+        ModuleShadow shadow = getShadow(address);
+        return shadow != null && shadow.isRedundant(command);
+    }
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
+    /**
+     * Forget what is known about a module's mode and pins, e.g. after a
+     * command went unanswered.
+     */
+    public void forgetModuleState(String address) {
+        ModuleShadow shadow = getShadow(address);
+        if (shadow != null) {
+            shadow.forget();
+        }
+    }
+
+    private ModuleShadow getShadow(String address) {
+        Connection connection = mConnections.get(address);
+        ConnectedThread r = connection == null ? null : connection.mConnectedThread;
+        return r == null ? null : r.mmShadow;
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
+    /**
+     * Return the addresses of all devices that are connecting or connected. */
+    public List<String> getActiveAddresses() {
+        List<String> addresses = new ArrayList<String>();
+        for (Connection connection : mConnections.values()) {
+            int state = connection.mState;
+            if (state == STATE_CONNECTING || state == STATE_CONNECTED) {
+                addresses.add(connection.mAddress);
+            }
+        }
+        return addresses;
+    }
 
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
+    /**
+     * Start the chat service.  Called by the Activity onResume() */
+    public void start() {
+        if (D) Log.d(TAG, "start");
 
-        // Send the name of the connected device back to the UI Activity
-        for (Handler handler : mHandlers) {
-        	
-	        Message msg = handler.obtainMessage(MESSAGE_DEVICE_NAME);
-	        Bundle bundle = new Bundle();
-	        bundle.putString(BluetoothAlarm.DEVICE_NAME, device.getName());
-	        msg.setData(bundle);
-	        handler.sendMessage(msg);
+        for (Connection connection : mConnections.values()) {
+            connection.start();
         }
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection to a remote device.
+     * Connections to other devices are not affected.
+     * @param address  The address of the device to connect
+     */
+    public void connect(String address) {
+        if (D) Log.d(TAG, "connect to: " + address);
+        AlarmLatency.mark(AlarmLatency.STAGE_CONNECT_START);
 
-        setState(STATE_CONNECTED);
+        getConnection(address).connect();
     }
 
     /**
      * Stop all threads
      */
-    public synchronized void stop() {
+    public void stop() {
         if (D) Log.d(TAG, "stop");
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        for (Connection connection : mConnections.values()) {
+            connection.stop();
         }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        // Nothing is left to reconnect; let the timer thread go
+        synchronized (this) {
+            if (mReconnectTimer != null) {
+                mReconnectTimer.shutdownNow();
+                mReconnectTimer = null;
+            }
         }
+    }
 
-        setState(STATE_NONE);
+    /**
+     * Run a reconnect after the given delay, starting the timer thread if
+     * stop() has shut it down.
+     */
+    private synchronized ScheduledFuture<?> scheduleReconnect(Runnable reconnect, long delayMs) {
+        if (mReconnectTimer == null) {
+            mReconnectTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Reconnect");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mReconnectTimer.schedule(reconnect, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the threads of one device.
+     * @param address  The address of the device to disconnect
+     */
+    public void stop(String address) {
+        if (D) Log.d(TAG, "stop " + address);
+
+        Connection connection = mConnections.get(address);
+        if (connection != null) {
+            connection.stop();
+        }
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
-     * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * Queue a write to every connected device. Never blocks.
+     * @param out The bytes to write; must not be modified afterwards
+     * @see ConnectedThread#write(byte[], WriteQueue.Callback)
      */
     public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+        for (Connection connection : mConnections.values()) {
+            ConnectedThread r = connection.mConnectedThread;
+            if (r != null) {
+                r.write(out, null);
+            }
         }
-        // Perform the write unsynchronized
-        r.write(out);
     }
 
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
+     * Queue a write to one device. Never blocks.
+     * @param address The address of the device
+     * @param out The bytes to write; must not be modified afterwards
+     * @return false if the device is not connected or its queue is full
+     */
+    public boolean write(String address, byte[] out) {
+        return write(address, out, null);
+    }
+
+    /**
+     * Queue a write to one device and be told when it has been sent.
+     * Never blocks.
+     * @param address The address of the device
+     * @param out The bytes to write; must not be modified afterwards
+     * @param callback Told on the writer thread when the write completes or
+     *                 fails, or null
+     * @return false if the write was refused; the callback is told as well
+     * @see ConnectedThread#write(byte[], WriteQueue.Callback)
      */
-    private void connectionFailed() {
-        
-    	for (Handler handler : mHandlers) {
-    		Message message = handler.obtainMessage(MESSAGE_CONNECTION_FAILED);
-    		handler.sendMessage(message);
-    	}
-        
-        // Start the service over to restart listening mode
-        BluetoothService.this.start();
+    public boolean write(String address, byte[] out, WriteQueue.Callback callback) {
+        Connection connection = mConnections.get(address);
+        // Take a copy, the connection may be replaced at any time
+        ConnectedThread r = connection == null ? null : connection.mConnectedThread;
+        if (r == null) {
+            if (callback != null) {
+                callback.onWriteComplete(out, false);
+            }
+            return false;
+        }
+        return r.write(out, callback);
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * The threads and state of the connection to one device.
+     *
+     * State transitions of a device are serialized on its own Connection,
+     * never on the service, so devices do not wait for each other. The
+     * threads are swapped under the lock but closed after it is released,
+     * since closing a socket can block for a long time. The current state
+     * and connected thread are volatile, so getState() and write() never
+     * take a lock at all.
      */
-    private void connectionLost() {
-    	
-    	for (Handler handler : mHandlers) {
-    		Message message = handler.obtainMessage(MESSAGE_CONNECTION_LOST);
-    		handler.sendMessage(message);
-    	}
+    private class Connection {
+        final String mAddress;
+        volatile int mState = STATE_NONE;
+        volatile ConnectedThread mConnectedThread;
+        // Guarded by this
+        ConnectThread mConnectThread;
+        final ReconnectPolicy.Backoff mBackoff = new ReconnectPolicy.Backoff();
+        ScheduledFuture<?> mReconnect;
+        int mReconnectSeq = 0;
+
+        Connection(String address) {
+            mAddress = address;
+        }
+
+        /**
+         * Set the current state of the connection. Called with the lock held
+         * so that Handlers see the state changes of a device in order.
+         * @param state  An integer defining the current connection state
+         */
+        private void setState(int state) {
+            if (D) Log.d(TAG, "setState() " + mAddress + " " + mState + " -> " + state);
+            mState = state;
+            if (mTrafficLogged) TrafficLog.state(mAddress, state);
 
-        // Start the service over to restart listening mode
-        BluetoothService.this.start();
+            // Give the new state to the Handler so the UI Activity can update
+            sendToHandlers(MESSAGE_STATE_CHANGE, state, -1, mAddress);
+        }
+
+        /**
+         * Start a new connection attempt, replacing any current one and any
+         * pending reconnect.
+         */
+        void connect() {
+            ConnectThread thread = new ConnectThread(this);
+            synchronized (this) {
+                cancelReconnect();
+                connect(thread);
+            }
+        }
+
+        /**
+         * Connect again if the reconnect that was scheduled is still wanted.
+         */
+        void reconnect(int seq) {
+            ConnectThread thread = new ConnectThread(this);
+            synchronized (this) {
+                if (!mAutoReconnect || mReconnect == null || mReconnectSeq != seq) {
+                    return;
+                }
+                mReconnect = null;
+                if (D) Log.d(TAG, "reconnect " + mAddress + " after " + mBackoff.getFailures() + " failures"
+                        + (mBackoff.isBreakerOpen() ? ", breaker open" : ""));
+                mReconnectPolicy.onAttempt();
+                connect(thread);
+            }
+        }
+
+        /**
+         * Schedule the next reconnect. Called with the lock held.
+         */
+        private void scheduleReconnect() {
+            if (mReconnect != null) {
+                mReconnect.cancel(false);
+            }
+            long delayMs = mReconnectPolicy.nextDelayMs(mBackoff);
+            if (D) Log.d(TAG, "reconnect " + mAddress + " in " + delayMs + " ms");
+
+            final int seq = ++mReconnectSeq;
+            mReconnect = BluetoothService.this.scheduleReconnect(new Runnable() {
+                public void run() {
+                    reconnect(seq);
+                }
+            }, delayMs);
+        }
+
+        /**
+         * Drop any pending reconnect and forget past failures.
+         */
+        synchronized void cancelReconnect() {
+            if (mReconnect != null) {
+                mReconnect.cancel(false);
+                mReconnect = null;
+            }
+            mBackoff.reset();
+        }
+
+        /**
+         * Start the given connect thread. Called with the lock held; the old
+         * threads are closed on the new connect thread, not by the caller.
+         */
+        private void connect(ConnectThread thread) {
+            thread.replace(mConnectThread, mConnectedThread);
+            mConnectThread = thread;
+            mConnectedThread = null;
+            setState(STATE_CONNECTING);
+
+            // Start the thread to connect with the given device
+            thread.start();
+        }
+
+        /**
+         * Start the ConnectedThread to begin managing a Bluetooth connection,
+         * unless the attempt that made it has been replaced or cancelled.
+         * @return false if the transport is no longer wanted
+         */
+        boolean connected(ConnectThread thread, SerialTransport transport) {
+            ConnectedThread oldConnected;
+            ConnectedThread connected = new ConnectedThread(this, transport);
+            synchronized (this) {
+                if (mConnectThread != thread) {
+                    return false;
+                }
+                if (D) Log.d(TAG, "connected " + mAddress + ", Socket Type:" + transport.getType());
+
+                // Reset the ConnectThread because we're done
+                mConnectThread = null;
+                mReconnectPolicy.onConnected(mBackoff);
+                oldConnected = mConnectedThread;
+                mConnectedThread = connected;
+
+                // Start the thread to manage the connection and perform transmissions
+                connected.start();
+                sendDeviceName(transport);
+                setState(STATE_CONNECTED);
+            }
+            cancel(null, oldConnected);
+            return true;
+        }
+
+        /**
+         * Send the name of the connected device back to the UI Activity
+         */
+        private void sendDeviceName(SerialTransport transport) {
+            for (WeakReference<Handler> ref : mHandlers.entries()) {
+                Handler handler = ref.get();
+                if (handler == null) {
+                    continue;
+                }
+    	        Message msg = handler.obtainMessage(MESSAGE_DEVICE_NAME);
+    	        Bundle bundle = new Bundle();
+    	        bundle.putString(BluetoothAlarm.DEVICE_NAME, transport.getName());
+    	        bundle.putString(DEVICE_ADDRESS, mAddress);
+    	        msg.setData(bundle);
+    	        handler.sendMessage(msg);
+            }
+        }
+
+        /**
+         * Cancel the threads and return to listening mode.
+         */
+        void start() {
+            cancelReconnect();
+            reset(STATE_LISTEN, null, null, 0);
+        }
+
+        /**
+         * Cancel the threads and return to the idle state.
+         */
+        void stop() {
+            cancelReconnect();
+            reset(STATE_NONE, null, null, 0);
+        }
+
+        /**
+         * Indicate that the connection attempt failed and notify the UI
+         * Activity, and retry if auto reconnect is enabled. Ignored if the
+         * attempt has already been replaced or cancelled.
+         */
+        void connectionFailed(ConnectThread thread) {
+            reset(STATE_LISTEN, thread, null, MESSAGE_CONNECTION_FAILED);
+        }
+
+        /**
+         * Indicate that the connection was lost and notify the UI Activity,
+         * and reconnect if auto reconnect is enabled. Ignored if the
+         * connection has already been replaced or stopped.
+         */
+        void connectionLost(ConnectedThread thread) {
+            reset(STATE_LISTEN, null, thread, MESSAGE_CONNECTION_LOST);
+        }
+
+        /**
+         * Cancel the threads and move to a new state.
+         * @param state       The new state
+         * @param ifConnect   Only if this is still the connecting thread
+         * @param ifConnected Only if this is still the connected thread
+         * @param message     Message to send to the Handlers first, or 0;
+         *                    a failure or loss that may be retried
+         */
+        private void reset(int state, ConnectThread ifConnect, ConnectedThread ifConnected, int message) {
+            ConnectThread oldConnect;
+            ConnectedThread oldConnected;
+            synchronized (this) {
+                if ((ifConnect != null && mConnectThread != ifConnect)
+                        || (ifConnected != null && mConnectedThread != ifConnected)) {
+                    return;
+                }
+                oldConnect = mConnectThread;
+                oldConnected = mConnectedThread;
+                mConnectThread = null;
+                mConnectedThread = null;
+                if (message != 0) {
+                    sendToHandlers(message, -1, -1, mAddress);
+                }
+                setState(state);
+                if (message != 0 && mAutoReconnect) {
+                    scheduleReconnect();
+                }
+            }
+            cancel(oldConnect, oldConnected);
+        }
+
+        private void cancel(ConnectThread connect, ConnectedThread connected) {
+            if (connect != null) {
+                connect.cancel();
+            }
+            if (connected != null) {
+                connected.cancel();
+            }
+        }
     }
 
     /**
@@ -265,62 +668,85 @@ public class BluetoothService {
      * succeeds or fails.
      */
     private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-        private String mSocketType;
+        private final Connection mmConnection;
+        private volatile SerialTransport mmTransport;
+        private volatile boolean mmCancelled = false;
+        private String mSocketType = "Unknown";
+        // Threads of the previous connection, closed before connecting
+        private ConnectThread mmOldConnect;
+        private ConnectedThread mmOldConnected;
+
+        public ConnectThread(Connection connection) {
+            mmConnection = connection;
+        }
 
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-            mSocketType = "Insecure";
+        void replace(ConnectThread oldConnect, ConnectedThread oldConnected) {
+            mmOldConnect = oldConnect;
+            mmOldConnected = oldConnected;
+        }
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+        public void run() {
+            Log.i(TAG, "BEGIN mConnectThread " + mmConnection.mAddress);
+            setName("ConnectThread " + mmConnection.mAddress);
+            mmConnection.cancel(mmOldConnect, mmOldConnected);
+            mmOldConnect = null;
+            mmOldConnected = null;
+
+            // Get a transport for a connection with the given device
+            SerialTransport transport;
             try {
-                tmp = device.createInsecureRfcommSocketToServiceRecord(
-                        MY_UUID_INSECURE);
+                transport = mTransportFactory.create(mmConnection.mAddress);
+                mSocketType = transport.getType();
             } catch (IOException e) {
                 Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
+                if (mTrafficLogged) {
+                    TrafficLog.event(TrafficLog.TYPE_ERROR, mmConnection.mAddress, "create failed: " + e.getMessage());
+                }
+                mmConnection.connectionFailed(this);
+                return;
+            }
+            mmTransport = transport;
+            if (mmCancelled) {
+                cancel();
+                return;
             }
-            mmSocket = tmp;
-        }
-
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
-            setName("ConnectThread" + mSocketType);
-
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
 
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the transport
             try {
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
-                mmSocket.connect();
+                transport.connect();
+                AlarmLatency.mark(AlarmLatency.STAGE_SOCKET_CONNECTED);
             } catch (IOException e) {
+                if (mTrafficLogged) {
+                    TrafficLog.event(TrafficLog.TYPE_ERROR, mmConnection.mAddress, "connect failed: " + e.getMessage());
+                }
                 // Close the socket
                 try {
-                    mmSocket.close();
+                    transport.close();
                 } catch (IOException e2) {
                     Log.e(TAG, "unable to close() " + mSocketType +
                             " socket during connection failure", e2);
                 }
-                connectionFailed();
+                mmConnection.connectionFailed(this);
                 return;
             }
 
-            // Reset the ConnectThread because we're done
-            synchronized (BluetoothService.this) {
-                mConnectThread = null;
+            // Start the connected thread, or drop the transport if this
+            // attempt was cancelled meanwhile
+            if (!mmConnection.connected(this, transport)) {
+                cancel();
             }
-
-            // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
         }
 
         public void cancel() {
+            mmCancelled = true;
+            SerialTransport transport = mmTransport;
+            if (transport == null) {
+                return;
+            }
             try {
-                mmSocket.close();
+                transport.close();
             } catch (IOException e) {
                 Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
             }
@@ -329,78 +755,135 @@ public class BluetoothService {
 
     /**
      * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * It handles all incoming transmissions; outgoing ones go through a
+     * WriteQueue with its own writer thread. Each read is delivered in a
+     * ReadBuffer from the thread's pool; every Handler that receives
+     * MESSAGE_READ owns the buffer until it calls release().
      */
     private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+        private final Connection mmConnection;
+        private final SerialTransport mmTransport;
         private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
-            mmSocket = socket;
+        private final WriteQueue mmWriteQueue;
+        private final ReadBufferPool mmReadBuffers = new ReadBufferPool();
+        private final Bundle mmAddressData = new Bundle();
+        // What the module is believed to be doing, new with each connection
+        final ModuleShadow mmShadow = new ModuleShadow();
+
+        public ConnectedThread(Connection connection, SerialTransport transport) {
+            Log.d(TAG, "create ConnectedThread: " + transport.getType());
+            mmConnection = connection;
+            mmTransport = transport;
+            mmAddressData.putString(DEVICE_ADDRESS, connection.mAddress);
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the transport input and output streams
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpIn = transport.getInputStream();
+                tmpOut = transport.getOutputStream();
             } catch (IOException e) {
                 Log.e(TAG, "temp sockets not created", e);
             }
 
             mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            mmWriteQueue = new WriteQueue(tmpOut, new WriteQueue.Callback() {
+                public void onWriteComplete(byte[] data, boolean success) {
+                    if (mTrafficLogged) {
+                        TrafficLog.data(TrafficLog.TYPE_WRITE, mmConnection.mAddress, data, 0, data.length);
+                    }
+
+                    // Share the sent message back to the UI Activity
+                    for (WeakReference<Handler> ref : mHandlers.entries()) {
+                        Handler handler = ref.get();
+                        if (handler == null) {
+                            continue;
+                        }
+                        Message msg = handler.obtainMessage(MESSAGE_WRITE, -1, -1, data);
+                        msg.setData(mmAddressData);
+                        msg.sendToTarget();
+                    }
+                }
+            });
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
+            Log.i(TAG, "BEGIN mConnectedThread " + mmConnection.mAddress);
+            setName("ConnectedThread " + mmConnection.mAddress);
+            final String address = mmConnection.mAddress;
             int bytes;
 
+            mmWriteQueue.start("WriteQueue " + address);
+
             // Keep listening to the InputStream while connected
             while (true) {
+                ReadBuffer buffer = mmReadBuffers.acquire();
                 try {
                     // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
+                    bytes = mmInStream.read(buffer.data);
+                    if (bytes < 0) {
+                        throw new IOException("end of stream");
+                    }
+                    buffer.setLength(bytes);
+                    if (mTrafficLogged) TrafficLog.data(TrafficLog.TYPE_READ, address, buffer.data, 0, bytes);
+                    // Before the listeners, so they see the new state
+                    mmShadow.onRead(buffer.data, 0, bytes);
+
+                    // Replies are consumed by read listeners right here,
+                    // without a round trip through the main thread
+                    for (WeakReference<ReadListener> ref : mReadListeners.entries()) {
+                        ReadListener listener = ref.get();
+                        if (listener != null) {
+                            listener.onRead(address, buffer.data, bytes);
+                        }
+                    }
 
-                    // Send the obtained bytes to the UI Activity
-                    for (Handler handler : mHandlers) {
-                    	handler.obtainMessage(MESSAGE_READ, bytes, -1, buffer).sendToTarget();
+                    // Send the obtained bytes to the UI Activity, each Handler
+                    // holds its own reference until it releases the buffer
+                    for (WeakReference<Handler> ref : mHandlers.entries()) {
+                        Handler handler = ref.get();
+                        if (handler == null) {
+                            continue;
+                        }
+                        buffer.retain();
+                        Message msg = handler.obtainMessage(MESSAGE_READ, bytes, -1, buffer);
+                        msg.setData(mmAddressData);
+                    	msg.sendToTarget();
                     }
+                    buffer.release();
                     
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    BluetoothService.this.start();
+                    buffer.release();
+                    mmWriteQueue.close();
+                    Log.e(TAG, "disconnected " + address, e);
+                    if (mTrafficLogged) {
+                        TrafficLog.event(TrafficLog.TYPE_ERROR, address, "disconnected: " + e.getMessage());
+                    }
+                    mmConnection.connectionLost(this);
                     break;
                 }
             }
         }
 
         /**
-         * Write to the connected OutStream.
+         * Queue a write to the connected OutStream.
          * @param buffer  The bytes to write
+         * @param callback  Told when the write completes, or null
+         * @return false if the write queue is full or closed
          */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
-
-                // Share the sent message back to the UI Activity
-                for (Handler handler : mHandlers) {
-                	handler.obtainMessage(MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
-                }
-                
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+        public boolean write(byte[] buffer, WriteQueue.Callback callback) {
+            mmShadow.onWrite(buffer);
+            if (!mmWriteQueue.write(buffer, callback)) {
+                mmShadow.onWriteRefused(buffer);
+                return false;
             }
+            return true;
         }
 
         public void cancel() {
+            mmWriteQueue.close();
             try {
-                mmSocket.close();
+                mmTransport.close();
             } catch (IOException e) {
                 Log.e(TAG, "close() of connect socket failed", e);
             }
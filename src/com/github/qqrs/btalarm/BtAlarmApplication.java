@@ -1,15 +1,36 @@
 package com.github.qqrs.btalarm;
 
+import java.io.File;
+
 import android.app.Application;
 
 
 public class BtAlarmApplication extends Application {
 	
-	public Thread alarmThread;
+	private static final String TAG = "BtAlarmApplication";
 	
 	private AlarmReceiver mReceiver;
 	private BluetoothService mService;
+	private RingScheduler mRingScheduler;
+	private ConfigStore mConfigStore;
+	private DeviceProfileCache mDeviceProfiles;
+		
+	@Override
+	public void onCreate() {
+		super.onCreate();
 		
+		// Open the traffic log, load the settings and create the service
+		// off the main thread, so that the first alarm after a restart of
+		// the process finds them ready
+		new Thread("Startup") {
+			public void run() {
+				TrafficLog.open(new File(getFilesDir(), TrafficLog.FILE_NAME));
+				getConfigStore();
+				getBluetoothService();
+			}
+		}.start();
+	}
+	
 	public AlarmReceiver getAlarmReceiver() {
 		
 		if (mReceiver == null) {
@@ -19,7 +40,7 @@ public class BtAlarmApplication extends Application {
 		return mReceiver;
 	}
 	
-	public BluetoothService getBluetoothService() {
+	public synchronized BluetoothService getBluetoothService() {
 		
 		if (mService == null) {
 			mService = new BluetoothService(this);
@@ -27,4 +48,31 @@ public class BtAlarmApplication extends Application {
 		
 		return mService;
 	}
+	
+	public synchronized ConfigStore getConfigStore() {
+		
+		if (mConfigStore == null) {
+			mConfigStore = new ConfigStore(getSharedPreferences(BluetoothAlarm.PREFS_NAME, MODE_PRIVATE));
+		}
+		
+		return mConfigStore;
+	}
+	
+	public synchronized DeviceProfileCache getDeviceProfiles() {
+		
+		if (mDeviceProfiles == null) {
+			mDeviceProfiles = new DeviceProfileCache(getSharedPreferences(DeviceProfileCache.PREFS_NAME, MODE_PRIVATE));
+		}
+		
+		return mDeviceProfiles;
+	}
+	
+	public synchronized RingScheduler getRingScheduler() {
+		
+		if (mRingScheduler == null) {
+			mRingScheduler = new RingScheduler();
+		}
+		
+		return mRingScheduler;
+	}
 }
@@ -0,0 +1,107 @@
+package com.github.qqrs.btalarm;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Keeps a module in command mode for as long as anyone needs it, so that
+ * toggling the relay does not pay for "$$$" and its guard time every time.
+ *
+ * Whoever drives the module, e.g. the alarm for its whole duration and each
+ * ring sequence while it runs, calls hold() before and release() after.
+ * Command mode is entered with the first command that needs it and left
+ * with "---" only once nobody has held the session for IDLE_EXIT_MS, so a
+ * sequence that follows right after another, or a repeating pattern, finds
+ * the module still in command mode. The exit is only sent if the module is
+ * known to be in command mode; if a new holder comes along while it is
+ * being sent, its next command simply enters command mode again.
+ */
+public class CommandModeSession {
+
+    private static final String TAG = "CommandModeSession";
+    private static final boolean D = true;
+
+    public static final long IDLE_EXIT_MS = 5000;
+
+    // Sends the idle exits of all modules
+    private static final ScheduledExecutorService sTimer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CommandModeSession");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final RN41CommandPipeline mPipeline;
+
+    // Guarded by this
+    private int mHolders = 0;
+    private ScheduledFuture<?> mExit;
+
+    private final Runnable mExitIfIdle = new Runnable() {
+        public void run() {
+            exitIfIdle();
+        }
+    };
+
+    public CommandModeSession(RN41CommandPipeline pipeline) {
+        mPipeline = pipeline;
+    }
+
+    /** Keep the module in command mode until release(). */
+    public synchronized void hold() {
+        mHolders++;
+        if (mExit != null) {
+            mExit.cancel(false);
+            mExit = null;
+        }
+    }
+
+    /**
+     * Give up a hold; the last one schedules the exit from command mode.
+     */
+    public synchronized void release() {
+        if (mHolders == 0) {
+            Log.w(TAG, mPipeline.getAddress() + ": release() without hold()");
+            return;
+        }
+        if (--mHolders == 0) {
+            mExit = sTimer.schedule(mExitIfIdle, IDLE_EXIT_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized boolean isHeld() {
+        return mHolders > 0;
+    }
+
+    /**
+     * Put the module in command mode now, if it is not already.
+     * @return true if the module is in command mode
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public boolean enter() throws InterruptedException {
+        return mPipeline.enterCommandMode();
+    }
+
+    private void exitIfIdle() {
+        synchronized (this) {
+            if (mHolders > 0) {
+                return;
+            }
+            mExit = null;
+        }
+        try {
+            if (mPipeline.executeInCommandMode(RN41Gpio.CMD_END)) {
+                if (D) Log.d(TAG, mPipeline.getAddress() + ": idle, left command mode");
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, mPipeline.getAddress() + ": exit from command mode interrupted");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.qqrs.btalarm;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Holds the current AlarmConfig snapshot.
+ *
+ * The preferences file is read once, when the store is created. Edits swap
+ * in a new snapshot atomically, so readers on any thread always see a
+ * complete, consistent set of settings without locking. Changes are written
+ * back by a background thread, WRITE_DELAY_MS after the first unsaved
+ * change, so a burst of edits costs one write and no caller ever waits for
+ * the disk.
+ */
+public class ConfigStore {
+
+    private static final String TAG = "ConfigStore";
+
+    public static final long WRITE_DELAY_MS = 200;
+
+    private final SharedPreferences mPrefs;
+    private final AtomicReference<AlarmConfig> mConfig;
+    private final AtomicBoolean mWritePending = new AtomicBoolean(false);
+    private final ScheduledExecutorService mWriter = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ConfigWriter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    public ConfigStore(SharedPreferences prefs) {
+        mPrefs = prefs;
+        mConfig = new AtomicReference<AlarmConfig>(AlarmConfig.load(prefs));
+    }
+
+    /**
+     * Return the application's store.
+     */
+    public static ConfigStore get(Context context) {
+        return ((BtAlarmApplication) context.getApplicationContext()).getConfigStore();
+    }
+
+    /** The current settings. */
+    public AlarmConfig get() {
+        return mConfig.get();
+    }
+
+    /** Start a set of changes, applied with Editor.apply(). */
+    public AlarmConfig.Editor edit() {
+        return new AlarmConfig.Editor(this);
+    }
+
+    AlarmConfig apply(AlarmConfig.Editor editor) {
+        AlarmConfig current;
+        AlarmConfig next;
+        do {
+            current = mConfig.get();
+            next = editor.applyTo(current);
+        } while (!mConfig.compareAndSet(current, next));
+
+        scheduleWrite();
+        return next;
+    }
+
+    private void scheduleWrite() {
+        if (!mWritePending.compareAndSet(false, true)) {
+            // Already scheduled, it will pick up this change too
+            return;
+        }
+        mWriter.schedule(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write the latest snapshot on the writer thread.
+     */
+    private void write() {
+        // Clear first, so that a change made while writing schedules another
+        mWritePending.set(false);
+        SharedPreferences.Editor editor = mPrefs.edit();
+        mConfig.get().save(editor);
+        if (!editor.commit()) {
+            Log.e(TAG, "unable to save settings");
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.qqrs.btalarm;
+
+import java.io.IOException;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Runs several ways of connecting to the same device against each other
+ * and keeps the first one that succeeds.
+ *
+ * The attempts are started in order, each on its own thread: the first
+ * right away and each following one a given stagger time after the one
+ * before, or as soon as every attempt started so far has failed. A stagger
+ * of ON_FAILURE only starts the attempt after the earlier ones failed. The
+ * first attempt to connect wins and all others are cancelled, including
+ * any that connect later. So a slow or flaky attempt costs at most its
+ * stagger time, while one that connects within it never has to share the
+ * radio with the others.
+ */
+public class ConnectRacer<T> {
+
+    private static final String TAG = "ConnectRacer";
+
+    // Stagger for an attempt that is only started once the earlier ones failed
+    public static final long ON_FAILURE = -1;
+
+    /**
+     * One way of connecting. connect() and cancel() are called on
+     * different threads.
+     */
+    public interface Attempt<T> {
+        /** Short name, for logging and metrics. */
+        String getName();
+
+        /**
+         * Connect; blocks until connected, failed or cancelled.
+         * @return the connection
+         */
+        T connect() throws IOException;
+
+        /**
+         * Abort a connect in progress and close its connection, whether
+         * or not it has already succeeded. May be called before connect().
+         */
+        void cancel();
+    }
+
+    private final List<? extends Attempt<T>> mAttempts;
+    private final long[] mStaggerMs;
+    private final String mName;
+
+    // Guarded by this
+    private int mStarted = 0;
+    private int mFailed = 0;
+    private IOException mLastError;
+    private T mWinner;
+    private Attempt<T> mWinnerAttempt;
+    private boolean mCancelled = false;
+
+    /**
+     * @param name       Used in thread names and logging
+     * @param attempts   The attempts, in order of preference
+     * @param staggerMs  For each attempt after the first, how long after the
+     *                   previous one it is started, or ON_FAILURE
+     */
+    public ConnectRacer(String name, List<? extends Attempt<T>> attempts, long[] staggerMs) {
+        if (staggerMs.length < attempts.size() - 1) {
+            throw new IllegalArgumentException("no stagger time for every attempt");
+        }
+        mName = name;
+        mAttempts = attempts;
+        mStaggerMs = staggerMs;
+    }
+
+    /**
+     * Run the race. This is a blocking call and will only return with the
+     * winning connection or throw the error of the last attempt to fail.
+     */
+    public T run() throws IOException {
+        if (mAttempts.isEmpty()) {
+            throw new IOException("no way to connect");
+        }
+
+        T winner;
+        synchronized (this) {
+            long nextStart = System.currentTimeMillis();
+            while (true) {
+                if (mCancelled) {
+                    break;
+                }
+                if (mWinner != null) {
+                    break;
+                }
+                long now = System.currentTimeMillis();
+                if (mStarted < mAttempts.size() && (now >= nextStart || mFailed == mStarted)) {
+                    start(mAttempts.get(mStarted++));
+                    if (mStarted < mAttempts.size()) {
+                        long stagger = mStaggerMs[mStarted - 1];
+                        nextStart = stagger == ON_FAILURE ? Long.MAX_VALUE : now + stagger;
+                    }
+                    continue;
+                }
+                if (mFailed == mAttempts.size()) {
+                    throw mLastError;
+                }
+                try {
+                    if (mStarted < mAttempts.size() && nextStart != Long.MAX_VALUE) {
+                        wait(nextStart - now);
+                    } else {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    mCancelled = true;
+                    break;
+                }
+            }
+            winner = mCancelled ? null : mWinner;
+        }
+        if (winner == null) {
+            cancelAll();
+            throw new IOException("connect cancelled");
+        }
+
+        // Drop the others, the ones that connect later close themselves
+        for (int i = 0; i < mAttempts.size(); i++) {
+            Attempt<T> attempt = mAttempts.get(i);
+            if (attempt != mWinnerAttempt) {
+                attempt.cancel();
+            }
+        }
+        return winner;
+    }
+
+    /** The attempt that won, or null. */
+    public synchronized Attempt<T> getWinner() {
+        return mWinnerAttempt;
+    }
+
+    /**
+     * Abort the race from another thread; run() throws and every attempt,
+     * including a winner not yet returned, is cancelled.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            notifyAll();
+        }
+        cancelAll();
+    }
+
+    private void cancelAll() {
+        for (int i = 0; i < mAttempts.size(); i++) {
+            mAttempts.get(i).cancel();
+        }
+    }
+
+    private void start(final Attempt<T> attempt) {
+        new Thread(mName + " " + attempt.getName()) {
+            public void run() {
+                T result;
+                try {
+                    result = attempt.connect();
+                } catch (IOException e) {
+                    Log.d(TAG, mName + ": " + attempt.getName() + " failed: " + e.getMessage());
+                    synchronized (ConnectRacer.this) {
+                        mFailed++;
+                        mLastError = e;
+                        ConnectRacer.this.notifyAll();
+                    }
+                    return;
+                }
+
+                boolean won;
+                synchronized (ConnectRacer.this) {
+                    won = mWinner == null && !mCancelled;
+                    if (won) {
+                        mWinner = result;
+                        mWinnerAttempt = attempt;
+                        ConnectRacer.this.notifyAll();
+                    }
+                }
+                if (won) {
+                    Log.d(TAG, mName + ": " + attempt.getName() + " connected first");
+                } else {
+                    attempt.cancel();
+                }
+            }
+        }.start();
+    }
+}
@@ -0,0 +1,185 @@
+package com.github.qqrs.btalarm;
+
+import android.content.Context;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * The conversation shown by BluetoothDebugActivity: the last CAPACITY
+ * chunks of bytes sent to and read from the device, oldest first.
+ *
+ * Entries are kept as raw bytes in a ring buffer whose byte arrays are
+ * reused once it is full, so a chatty device costs neither memory growth
+ * nor garbage. The ListView is told about new entries at most once per
+ * frame, from a Choreographer callback, however many arrive in between;
+ * until then the adapter keeps reporting the count it last told it, since
+ * ListView insists on being notified of every change in count.
+ * Rows are only turned into text in getView(), so switching between text
+ * and hex just redraws the visible rows.
+ *
+ * Must only be used on the main thread.
+ */
+public class ConversationAdapter extends BaseAdapter {
+
+    public static final int CAPACITY = 500;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final LayoutInflater mInflater;
+    private final int mResource;
+
+    // Ring buffer of entries, the oldest at mHead
+    private final byte[][] mData = new byte[CAPACITY][];
+    private final int[] mLengths = new int[CAPACITY];
+    private final boolean[] mOutgoing = new boolean[CAPACITY];
+    private int mHead = 0;
+    private int mCount = 0;
+    // Number of entries ever added, for stable ids
+    private long mAdded = 0;
+
+    // What the ListView was last told
+    private int mShownHead = 0;
+    private int mShownCount = 0;
+    private long mShownAdded = 0;
+
+    private String mRemoteName;
+    private boolean mHex = false;
+    private boolean mFramePending = false;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        public void doFrame(long frameTimeNanos) {
+            mFramePending = false;
+            mShownHead = mHead;
+            mShownCount = mCount;
+            mShownAdded = mAdded;
+            notifyDataSetChanged();
+        }
+    };
+
+    /**
+     * @param resource  Layout of a row, a TextView
+     */
+    public ConversationAdapter(Context context, int resource) {
+        mInflater = LayoutInflater.from(context);
+        mResource = resource;
+    }
+
+    /** Name shown for the bytes read from the device. */
+    public void setRemoteName(String name) {
+        mRemoteName = name;
+        changed();
+    }
+
+    /** Show the bytes as hex instead of text. */
+    public void setHex(boolean hex) {
+        mHex = hex;
+        changed();
+    }
+
+    public boolean isHex() {
+        return mHex;
+    }
+
+    /**
+     * Add a chunk of bytes; they are copied.
+     * @param outgoing  Whether they were sent to the device
+     */
+    public void add(boolean outgoing, byte[] data, int offset, int length) {
+        int index;
+        if (mCount < CAPACITY) {
+            index = (mHead + mCount) % CAPACITY;
+            mCount++;
+        } else {
+            // Overwrite the oldest
+            index = mHead;
+            mHead = (mHead + 1) % CAPACITY;
+        }
+
+        byte[] copy = mData[index];
+        if (copy == null || copy.length < length) {
+            copy = new byte[Math.max(length, 32)];
+            mData[index] = copy;
+        }
+        System.arraycopy(data, offset, copy, 0, length);
+        mLengths[index] = length;
+        mOutgoing[index] = outgoing;
+        mAdded++;
+        changed();
+    }
+
+    public void clear() {
+        mHead = 0;
+        mCount = 0;
+        changed();
+    }
+
+    /**
+     * Drop a pending update, e.g. when the Activity goes away.
+     */
+    public void cancelUpdate() {
+        if (mFramePending) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            mFramePending = false;
+        }
+    }
+
+    private void changed() {
+        if (!mFramePending) {
+            mFramePending = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mShownCount;
+    }
+
+    /** Returns the text of a row. */
+    @Override
+    public Object getItem(int position) {
+        return format(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mShownAdded - mShownCount + position;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) (convertView != null ? convertView
+                : mInflater.inflate(mResource, parent, false));
+        view.setText(format(position));
+        return view;
+    }
+
+    private String format(int position) {
+        int index = (mShownHead + position) % CAPACITY;
+        byte[] data = mData[index];
+        int length = mLengths[index];
+
+        StringBuilder sb = new StringBuilder(length * 3 + 16);
+        sb.append(mOutgoing[index] ? "Me" : mRemoteName).append(":  ");
+        if (mHex) {
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                sb.append(HEX[(data[i] >> 4) & 0xf]).append(HEX[data[i] & 0xf]);
+            }
+        } else {
+            sb.append(new String(data, 0, length));
+        }
+        return sb.toString();
+    }
+}
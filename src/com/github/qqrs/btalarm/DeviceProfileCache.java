@@ -0,0 +1,151 @@
+package com.github.qqrs.btalarm;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Remembers what was learned about each device the last time it connected:
+ * the RFCOMM channel its Serial Port Profile service is on, when it last
+ * connected and how long that took.
+ *
+ * With a known channel RfcommTransport can connect to it directly and skip
+ * the SDP lookup, which otherwise costs a round trip to the device before
+ * every connect. The profiles are kept in their own preferences file,
+ * loaded once and written back with apply() so recording a connect never
+ * waits for the disk.
+ *
+ * The cache also keeps a connect-time histogram for each way of connecting
+ * that won a race in RfcommTransport, and counts how often the cached
+ * channel failed, so the saving shows up next to the other latency metrics.
+ */
+public class DeviceProfileCache {
+
+    private static final String TAG = "DeviceProfileCache";
+
+    public static final String PREFS_NAME = "DeviceProfiles";
+
+    /** What is known about one device. Immutable. */
+    public static final class Profile {
+        public final int channel;
+        public final long lastSuccessTime;
+        public final long connectMs;
+
+        Profile(int channel, long lastSuccessTime, long connectMs) {
+            this.channel = channel;
+            this.lastSuccessTime = lastSuccessTime;
+            this.connectMs = connectMs;
+        }
+
+        String encode() {
+            return channel + "," + lastSuccessTime + "," + connectMs;
+        }
+
+        static Profile decode(String value) {
+            String[] fields = value.split(",");
+            if (fields.length != 3) {
+                return null;
+            }
+            try {
+                return new Profile(Integer.parseInt(fields[0]),
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+    private final Map<String, Profile> mProfiles = new ConcurrentHashMap<String, Profile>();
+
+    // Connect times by winning strategy
+    private final ConcurrentHashMap<String, LatencyHistogram> mConnectTimes =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    private final AtomicLong mCachedFailures = new AtomicLong();
+
+    public DeviceProfileCache(SharedPreferences prefs) {
+        mPrefs = prefs;
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (!(entry.getValue() instanceof String)) {
+                continue;
+            }
+            Profile profile = Profile.decode((String) entry.getValue());
+            if (profile != null) {
+                mProfiles.put(entry.getKey(), profile);
+            } else {
+                Log.w(TAG, "ignoring bad profile for " + entry.getKey());
+            }
+        }
+    }
+
+    /** The profile of a device, or null if it never connected. */
+    public Profile get(String address) {
+        return mProfiles.get(address);
+    }
+
+    /**
+     * The RFCOMM channel a device was last connected on, or 0 if unknown.
+     */
+    public int getChannel(String address) {
+        Profile profile = mProfiles.get(address);
+        return profile == null ? 0 : profile.channel;
+    }
+
+    /**
+     * Record a successful connect.
+     * @param channel    The channel it was made on, or 0 if unknown, which
+     *                   keeps the channel already known
+     * @param strategy   How it connected
+     * @param connectUs  How long the connect took
+     */
+    public void recordConnect(String address, int channel, String strategy, long connectUs) {
+        LatencyHistogram histogram = mConnectTimes.get(strategy);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram("connect, " + strategy);
+            histogram = mConnectTimes.putIfAbsent(strategy, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(connectUs);
+
+        if (channel <= 0) {
+            channel = getChannel(address);
+        }
+        Profile profile = new Profile(channel, System.currentTimeMillis(), connectUs / 1000);
+        mProfiles.put(address, profile);
+        mPrefs.edit().putString(address, profile.encode()).apply();
+    }
+
+    /**
+     * Record that connecting on the cached channel failed. The channel is
+     * kept, since the device may just have been out of range; a later SDP
+     * lookup that finds another channel replaces it.
+     */
+    public void recordCachedFailure(String address) {
+        mCachedFailures.incrementAndGet();
+        Log.d(TAG, "cached channel " + getChannel(address) + " failed for " + address);
+    }
+
+    public void resetStats() {
+        mConnectTimes.clear();
+        mCachedFailures.set(0);
+    }
+
+    /** Human readable summary of the metrics. */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("cached channel failures ").append(mCachedFailures.get());
+        if (mConnectTimes.isEmpty()) {
+            sb.append("\nno connects recorded");
+        }
+        for (LatencyHistogram histogram : new TreeMap<String, LatencyHistogram>(mConnectTimes).values()) {
+            sb.append("\n").append(histogram.summary());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.qqrs.btalarm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Polls the GPIO pins of the connected modules with CMD_STATUS ("g&") and
+ * reports changes, so that the app knows whether the relay really is on.
+ *
+ * The poll interval follows the alarm: every ALARM_INTERVAL_MS while it
+ * rings and every IDLE_INTERVAL_MS otherwise, where 0, the default, stops
+ * polling altogether. A module is only polled while it is connected and
+ * already in command mode, so a poll never costs an extra "$$$"/"---" round
+ * trip or gets taken for data; during an alarm the ring sequence keeps the
+ * module in command mode. Each poll is compared with the previous value of
+ * that module and only a change is reported, as
+ * BluetoothService.MESSAGE_GPIO_CHANGED.
+ */
+public class GpioMonitor {
+
+    private static final String TAG = "GpioMonitor";
+    private static final boolean D = true;
+
+    public static final long ALARM_INTERVAL_MS = 500;
+    public static final long IDLE_INTERVAL_MS = 0;
+
+    // Pin values before the first poll of a connection
+    private static final int UNKNOWN = -1;
+
+    private final BluetoothService mService;
+    private final ConcurrentHashMap<String, RN41CommandPipeline> mPipelines =
+            new ConcurrentHashMap<String, RN41CommandPipeline>();
+    // Last pin values by address
+    private final ConcurrentHashMap<String, Integer> mValues = new ConcurrentHashMap<String, Integer>();
+    private final ScheduledExecutorService mPoller = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "GpioMonitor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // Guarded by this
+    private long mIntervalMs = 0;
+    private ScheduledFuture<?> mPoll;
+
+    public GpioMonitor(BluetoothService service) {
+        mService = service;
+    }
+
+    /** Poll the module that a pipeline talks to. */
+    public void watch(RN41CommandPipeline pipeline) {
+        mPipelines.put(pipeline.getAddress(), pipeline);
+    }
+
+    public void unwatch(String address) {
+        mPipelines.remove(address);
+    }
+
+    /**
+     * Poll at the alarm or the idle rate.
+     */
+    public void setAlarmActive(boolean active) {
+        setInterval(active ? ALARM_INTERVAL_MS : IDLE_INTERVAL_MS);
+    }
+
+    /**
+     * Poll every intervalMs, starting right away, or stop polling if 0.
+     */
+    public synchronized void setInterval(long intervalMs) {
+        if (intervalMs == mIntervalMs) {
+            return;
+        }
+        if (D) Log.d(TAG, "poll interval " + mIntervalMs + " -> " + intervalMs + " ms");
+        mIntervalMs = intervalMs;
+        if (mPoll != null) {
+            mPoll.cancel(false);
+            mPoll = null;
+        }
+        if (intervalMs > 0) {
+            mPoll = mPoller.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    poll();
+                }
+            }, 0, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Stop polling for good. */
+    public synchronized void shutdown() {
+        mIntervalMs = 0;
+        mPoller.shutdownNow();
+    }
+
+    private void poll() {
+        for (RN41CommandPipeline pipeline : mPipelines.values()) {
+            String address = pipeline.getAddress();
+            if (mService.getState(address) != BluetoothService.STATE_CONNECTED) {
+                // Start over after a reconnect
+                mValues.remove(address);
+                continue;
+            }
+
+            try {
+                if (!pipeline.executeInCommandMode(RN41Gpio.CMD_STATUS)) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                // Cancelled by shutdown()
+                return;
+            }
+
+            int value = pipeline.getLastStatus();
+            Integer previous = mValues.put(address, value);
+            int last = previous == null ? UNKNOWN : previous;
+            if (value != last) {
+                if (D) Log.d(TAG, address + ": pins " + Integer.toHexString(last)
+                        + " -> " + Integer.toHexString(value));
+                mService.notifyGpioChanged(address, last, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.github.qqrs.btalarm;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Micro benchmarks for the code on the alarm's critical path, run on the
+ * phone from the debug terminal so that the numbers come from the VM and
+ * hardware the alarm actually runs on.
+ *
+ * Each benchmark is warmed up, then timed over a fixed number of
+ * operations while the VM counts allocations, and reported as time and
+ * allocated objects/bytes per operation. Anything above zero allocations
+ * on the encode, dispatch or parse paths is a regression. The dispatch and
+ * ring benchmarks run the real BluetoothService against an RN41Simulator
+ * with no added latency, so they measure the app's own overhead per reply
+ * and per command round trip. Their traffic is kept out of the TrafficLog.
+ *
+ * run() takes several seconds; call it off the main thread.
+ */
+public class HotPathBenchmark {
+
+    private static final String TAG = "HotPathBenchmark";
+
+    private static final String SIMULATOR_ADDRESS = "00:00:00:00:BE:EC";
+
+    /**
+     * One benchmark, run for a number of operations.
+     */
+    private interface Benchmark {
+        void run(int ops) throws Exception;
+    }
+
+    // Keeps results alive so the work is not optimized away
+    private static volatile int sSink;
+
+    /**
+     * Run all benchmarks and return the report.
+     */
+    public static String run() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-18s %10s %10s %10s%n", "benchmark", "ns/op", "allocs/op", "bytes/op"));
+
+        measure(sb, "gpio encode", 100000, false, new Benchmark() {
+            public void run(int ops) {
+                int sink = 0;
+                for (int i = 0; i < ops; i++) {
+                    sink += RN41Gpio.encodeSet(RN41Gpio.PIN_RELAY, i).length;
+                    sink += RN41Gpio.encode(RN41Gpio.CMD_ON + (i & 1)).length;
+                }
+                sSink = sink;
+            }
+        });
+
+        DispatchBenchmark dispatch = new DispatchBenchmark();
+        try {
+            if (dispatch.setUp()) {
+                measure(sb, "read dispatch", 10000, true, dispatch);
+            } else {
+                sb.append("read dispatch: simulator did not connect\n");
+            }
+        } finally {
+            dispatch.tearDown();
+        }
+
+        measure(sb, "response parse", 100000, false, new Benchmark() {
+            final byte[] mReplies = "CMD\r\nAOK\r\nAOK\r\n08\r\nEND\r\n".getBytes();
+            final RN41ResponseParser mParser = new RN41ResponseParser(new RN41ResponseParser.Listener() {
+                public void onResponse(int type, int value) {
+                    sSink += type;
+                }
+            });
+
+            public void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    mParser.feed(mReplies, 0, mReplies.length);
+                }
+            }
+        });
+
+        RingBenchmark ring = new RingBenchmark();
+        try {
+            if (ring.setUp()) {
+                measure(sb, "relay toggle", 200, true, ring.mToggle);
+                measure(sb, "ring sequence", 10, true, ring.mSequence);
+            } else {
+                sb.append("ring benchmarks: simulator did not connect\n");
+            }
+        } finally {
+            ring.tearDown();
+        }
+
+        String report = sb.toString();
+        Log.i(TAG, "\n" + report);
+        return report;
+    }
+
+    /**
+     * Warm up and time one benchmark, appending a line to the report.
+     * @param global  Count allocations on all threads, for benchmarks that
+     *                involve the connection threads; otherwise only the
+     *                calling thread's
+     */
+    private static void measure(StringBuilder sb, String name, int ops, boolean global, Benchmark benchmark) {
+        try {
+            benchmark.run(Math.max(1, ops / 10));
+
+            Debug.resetAllCounts();
+            Debug.startAllocCounting();
+            long start = System.nanoTime();
+            benchmark.run(ops);
+            long elapsed = System.nanoTime() - start;
+            Debug.stopAllocCounting();
+
+            long count = global ? Debug.getGlobalAllocCount() : Debug.getThreadAllocCount();
+            long size = global ? Debug.getGlobalAllocSize() : Debug.getThreadAllocSize();
+            sb.append(String.format("%-18s %10.0f %10.2f %10.1f%n", name,
+                    (double) elapsed / ops, (double) count / ops, (double) size / ops));
+        } catch (Exception e) {
+            Log.e(TAG, name + " failed", e);
+            sb.append(String.format("%-18s failed: %s%n", name, e));
+        }
+    }
+
+    /**
+     * A real service connected to a simulated module.
+     */
+    private static class SimulatorBenchmark {
+        final RN41Simulator.Factory mFactory = new RN41Simulator.Factory(0, 0);
+        final BluetoothService mService = new BluetoothService(mFactory);
+        final RN41CommandPipeline mPipeline = new RN41CommandPipeline(mService, SIMULATOR_ADDRESS);
+
+        boolean setUp() {
+            mService.setTrafficLogged(false);
+            mPipeline.attach();
+            mService.connect(SIMULATOR_ADDRESS);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (mService.getState(SIMULATOR_ADDRESS) != BluetoothService.STATE_CONNECTED) {
+                if (System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void tearDown() {
+            mPipeline.detach();
+            mService.stop();
+        }
+    }
+
+    /**
+     * The read dispatch done by the connection thread for every chunk the
+     * module sends: read into a pooled buffer, feed the module's shadow and
+     * hand it to every read listener, here the pipeline and the benchmark.
+     * Each reply is waited for before the next is sent, so the time
+     * includes the hand-off to the connection thread.
+     */
+    private static class DispatchBenchmark extends SimulatorBenchmark
+            implements Benchmark, BluetoothService.ReadListener {
+        private final byte[] mReply = "AOK\r\n".getBytes();
+
+        // Bytes seen by onRead(), guarded by this
+        private long mReceived = 0;
+
+        @Override
+        boolean setUp() {
+            mService.addReadListener(this);
+            return super.setUp();
+        }
+
+        public void run(int ops) throws Exception {
+            RN41Simulator simulator = mFactory.getSimulator(SIMULATOR_ADDRESS);
+            for (int i = 0; i < ops; i++) {
+                long expected;
+                synchronized (this) {
+                    expected = mReceived + mReply.length;
+                }
+                simulator.inject(mReply);
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + 1000;
+                    while (mReceived < expected) {
+                        long remainingMs = deadline - System.currentTimeMillis();
+                        if (remainingMs <= 0) {
+                            throw new IllegalStateException("reply not dispatched");
+                        }
+                        wait(remainingMs);
+                    }
+                }
+            }
+        }
+
+        public synchronized void onRead(String address, byte[] buffer, int length) {
+            mReceived += length;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Command round trips through the real service, write queue and
+     * pipeline against a simulated module.
+     */
+    private static class RingBenchmark extends SimulatorBenchmark {
+        private void expect(int cmd) throws Exception {
+            if (!mPipeline.execute(cmd)) {
+                throw new IllegalStateException("no reply to command " + cmd);
+            }
+        }
+
+        // One relay on/off pair in command mode
+        final Benchmark mToggle = new Benchmark() {
+            public void run(int ops) throws Exception {
+                expect(RN41Gpio.CMD_BEGIN);
+                for (int i = 0; i < ops; i++) {
+                    expect(RN41Gpio.CMD_ON);
+                    expect(RN41Gpio.CMD_OFF);
+                }
+                expect(RN41Gpio.CMD_END);
+            }
+        };
+
+        // A complete single ring, including the escape guard time
+        final Benchmark mSequence = new Benchmark() {
+            public void run(int ops) throws Exception {
+                for (int i = 0; i < ops; i++) {
+                    expect(RN41Gpio.CMD_BEGIN);
+                    expect(RN41Gpio.CMD_ON);
+                    expect(RN41Gpio.CMD_OFF);
+                    expect(RN41Gpio.CMD_END);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.qqrs.btalarm;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A copy-on-write set of weakly referenced listeners.
+ *
+ * Dispatching threads iterate over an immutable snapshot returned by
+ * entries(), so dispatch never locks and never sees a concurrent
+ * modification. add() and remove() swap in a new snapshot with a
+ * compare-and-set. Listeners are only weakly referenced, so an Activity that
+ * misses its removeHandler() call can still be collected; its cleared entry
+ * is pruned on the next modification or when a dispatcher calls prune().
+ */
+public class ListenerRegistry<T> {
+
+    private static final WeakReference<?>[] EMPTY = new WeakReference<?>[0];
+
+    @SuppressWarnings("unchecked")
+    private final AtomicReference<WeakReference<T>[]> mEntries =
+        new AtomicReference<WeakReference<T>[]>((WeakReference<T>[]) EMPTY);
+
+    /**
+     * Register a listener. The registry does not keep it alive, so the caller
+     * must hold a strong reference for as long as it wants callbacks.
+     */
+    public void add(T listener) {
+        while (true) {
+            WeakReference<T>[] current = mEntries.get();
+            if (indexOf(current, listener) >= 0) {
+                return;
+            }
+            WeakReference<T>[] next = copyLive(current, null, 1);
+            next[next.length - 1] = new WeakReference<T>(listener);
+            if (mEntries.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    public void remove(T listener) {
+        while (true) {
+            WeakReference<T>[] current = mEntries.get();
+            if (indexOf(current, listener) < 0) {
+                return;
+            }
+            if (mEntries.compareAndSet(current, copyLive(current, listener, 0))) {
+                return;
+            }
+        }
+    }
+
+    /** Drop the entries of listeners that have been garbage collected. */
+    public void prune() {
+        while (true) {
+            WeakReference<T>[] current = mEntries.get();
+            WeakReference<T>[] next = copyLive(current, null, 0);
+            if (next.length == current.length || mEntries.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Return the current snapshot. The array must not be modified; entries
+     * whose get() returns null should be skipped.
+     */
+    public WeakReference<T>[] entries() {
+        return mEntries.get();
+    }
+
+    public boolean isEmpty() {
+        return mEntries.get().length == 0;
+    }
+
+    private static <T> int indexOf(WeakReference<T>[] entries, T listener) {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].get() == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Copy the live entries other than the excluded listener into a new array
+     * with the given number of free slots at the end.
+     */
+    private WeakReference<T>[] copyLive(WeakReference<T>[] entries, T excluded, int extra) {
+        // Each reference is read once, it may be cleared at any time
+        @SuppressWarnings("unchecked")
+        WeakReference<T>[] copy = (WeakReference<T>[]) new WeakReference<?>[entries.length + extra];
+        int live = 0;
+        for (WeakReference<T> entry : entries) {
+            T listener = entry.get();
+            if (listener != null && listener != excluded) {
+                copy[live++] = entry;
+            }
+        }
+        return live + extra == copy.length ? copy : Arrays.copyOf(copy, live + extra);
+    }
+}
@@ -0,0 +1,192 @@
+package com.github.qqrs.btalarm;
+
+import java.util.Arrays;
+
+/**
+ * What BluetoothService believes the state of one connected RN41 to be:
+ * whether it is in data or command mode and the values of those GPIO pins
+ * that are known.
+ *
+ * The shadow is fed every byte written to and read from the module, and
+ * only believes a reply that answers the last command written: "CMD" to
+ * "$$$", "END" to "---", "AOK" to an "S&", which then takes effect, and a
+ * status line to "g&", which makes all pins in RN41Gpio.PIN_ALL known. An
+ * "ERR" or "?" in answer to a command other than "$$$" means command mode.
+ * Lines nobody asked for, e.g. data that happens to look like a reply,
+ * change nothing. A new shadow is made for every
+ * connection, in data mode with no pins known. When a command goes
+ * unanswered its effect is uncertain, so forget() makes the mode and pins
+ * unknown until the module says otherwise.
+ *
+ * isRedundant() tells whether a command would leave the module as it is,
+ * so that it can be skipped.
+ */
+public class ModuleShadow implements RN41ResponseParser.Listener {
+
+    public static final int MODE_DATA = 0;
+    public static final int MODE_COMMAND = 1;
+    public static final int MODE_UNKNOWN = 2;
+
+    // Only used on the connection's read thread
+    private final RN41ResponseParser mParser = new RN41ResponseParser(this);
+
+    // Guarded by this
+    private int mMode = MODE_DATA;
+    // The reply the last command written is waiting for, or 0
+    private int mExpected = 0;
+    private int mKnownPins = 0;
+    private int mPinValues = 0;
+    // An "S&" waiting for its "AOK", or mask 0
+    private int mPendingMask = 0;
+    private int mPendingValues = 0;
+
+    /** Feed bytes read from the module, on the read thread. */
+    public void onRead(byte[] buffer, int offset, int length) {
+        mParser.feed(buffer, offset, length);
+    }
+
+    /**
+     * Note bytes about to be written to the module. This is done before
+     * they are queued, since the reply may be read before the writer has
+     * even returned.
+     */
+    public synchronized void onWrite(byte[] data) {
+        int expected = expectedReply(data);
+        if (expected == 0) {
+            return;
+        }
+        mExpected = expected;
+        int set = parseSet(data);
+        if (set >= 0) {
+            mPendingMask = (set >> 8) & RN41Gpio.PIN_ALL;
+            mPendingValues = set & mPendingMask;
+        } else {
+            mPendingMask = 0;
+        }
+    }
+
+    /**
+     * Take back onWrite() for bytes that were not queued after all, so
+     * that a later reply is not taken as the answer to a command that was
+     * never sent.
+     */
+    public synchronized void onWriteRefused(byte[] data) {
+        int expected = expectedReply(data);
+        if (expected == 0 || expected != mExpected) {
+            return;
+        }
+        int set = parseSet(data);
+        if (set < 0 || (mPendingMask == ((set >> 8) & RN41Gpio.PIN_ALL)
+                && mPendingValues == (set & mPendingMask))) {
+            mExpected = 0;
+            mPendingMask = 0;
+        }
+    }
+
+    public synchronized void onResponse(int type, int value) {
+        if (mExpected == 0) {
+            // Not an answer to anything we sent
+            return;
+        }
+        if (type == mExpected) {
+            switch (type) {
+            case RN41ResponseParser.RESPONSE_CMD:
+                mMode = MODE_COMMAND;
+                break;
+            case RN41ResponseParser.RESPONSE_END:
+                mMode = MODE_DATA;
+                break;
+            case RN41ResponseParser.RESPONSE_AOK:
+                mMode = MODE_COMMAND;
+                mPinValues = (mPinValues & ~mPendingMask) | mPendingValues;
+                mKnownPins |= mPendingMask;
+                break;
+            case RN41ResponseParser.RESPONSE_GPIO:
+                mMode = MODE_COMMAND;
+                mPinValues = value & RN41Gpio.PIN_ALL;
+                mKnownPins = RN41Gpio.PIN_ALL;
+                break;
+            }
+        } else if ((type == RN41ResponseParser.RESPONSE_ERR || type == RN41ResponseParser.RESPONSE_UNKNOWN)
+                && mExpected != RN41ResponseParser.RESPONSE_CMD) {
+            // The command was read and rejected, which only happens in
+            // command mode
+            mMode = MODE_COMMAND;
+        } else {
+            return;
+        }
+        mExpected = 0;
+        mPendingMask = 0;
+    }
+
+    /** Forget the mode and pins after a command went unanswered. */
+    public synchronized void forget() {
+        mMode = MODE_UNKNOWN;
+        mKnownPins = 0;
+        mExpected = 0;
+        mPendingMask = 0;
+    }
+
+    /** One of the MODE_* values. */
+    public synchronized int getMode() {
+        return mMode;
+    }
+
+    /**
+     * Whether sending a command would not change the module's state:
+     * "$$$" in command mode, "---" in data mode, or an "S&" for pins that
+     * are known to have those values already.
+     */
+    public synchronized boolean isRedundant(byte[] command) {
+        if (Arrays.equals(command, RN41Gpio.encode(RN41Gpio.CMD_BEGIN))) {
+            return mMode == MODE_COMMAND;
+        }
+        if (Arrays.equals(command, RN41Gpio.encode(RN41Gpio.CMD_END))) {
+            return mMode == MODE_DATA;
+        }
+        int set = parseSet(command);
+        if (set < 0) {
+            return false;
+        }
+        int mask = (set >> 8) & RN41Gpio.PIN_ALL;
+        return (mKnownPins & mask) == mask && (mPinValues & mask) == (set & mask);
+    }
+
+    /**
+     * @return the RESPONSE_* type that answers a command, or 0 if the bytes
+     *         are not a command the shadow follows
+     */
+    private static int expectedReply(byte[] data) {
+        if (Arrays.equals(data, RN41Gpio.encode(RN41Gpio.CMD_BEGIN))) {
+            return RN41ResponseParser.RESPONSE_CMD;
+        }
+        if (Arrays.equals(data, RN41Gpio.encode(RN41Gpio.CMD_END))) {
+            return RN41ResponseParser.RESPONSE_END;
+        }
+        if (Arrays.equals(data, RN41Gpio.encode(RN41Gpio.CMD_STATUS))) {
+            return RN41ResponseParser.RESPONSE_GPIO;
+        }
+        if (parseSet(data) >= 0) {
+            return RN41ResponseParser.RESPONSE_AOK;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the MMVV word of an "S&,MMVV" command, or -1
+     */
+    private static int parseSet(byte[] data) {
+        if (data.length < 7 || data[0] != 'S' || data[1] != '&' || data[2] != ',') {
+            return -1;
+        }
+        int word = 0;
+        for (int i = 3; i < 7; i++) {
+            int digit = Character.digit(data[i], 16);
+            if (digit < 0) {
+                return -1;
+            }
+            word = (word << 4) | digit;
+        }
+        return word;
+    }
+}
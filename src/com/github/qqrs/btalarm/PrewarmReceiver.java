@@ -0,0 +1,53 @@
+package com.github.qqrs.btalarm;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Receives the pre-warm alarm set by PrewarmScheduler and starts
+ * AlarmRingerService to open the connection.
+ *
+ * AlarmManager only keeps the CPU awake until onReceive() returns, so a
+ * partial wake lock is taken here and handed over to the service, which
+ * releases it once the connection is up or the hold window has passed.
+ * The lock times out on its own after the hold window in case the service
+ * never gets that far.
+ */
+public class PrewarmReceiver extends BroadcastReceiver
+{
+	private static final String TAG = "PrewarmReceiver";
+
+	private static PowerManager.WakeLock sWakeLock;
+
+	@Override
+	public void onReceive(Context context, Intent intent)
+	{
+		Log.d(TAG, "pre-warm alarm received");
+		acquireWakeLock(context);
+
+		Intent startServiceIntent = new Intent(context, AlarmRingerService.class);
+		startServiceIntent.setAction(PrewarmScheduler.ACTION_PREWARM);
+		context.startService(startServiceIntent);
+	}
+
+	private static synchronized void acquireWakeLock(Context context) {
+		if (sWakeLock == null) {
+			PowerManager pm = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+			sWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+			sWakeLock.setReferenceCounted(false);
+		}
+		sWakeLock.acquire(PrewarmScheduler.getHoldMs(context));
+	}
+
+	/**
+	 * Let the CPU sleep again. Safe to call when the lock is not held.
+	 */
+	public static synchronized void releaseWakeLock() {
+		if (sWakeLock != null && sWakeLock.isHeld()) {
+			sWakeLock.release();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.github.qqrs.btalarm;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.provider.Settings;
+import android.util.Log;
+
+/**
+ * Schedules AlarmRingerService to open the Bluetooth connection a little
+ * before the next clock alarm, so that the SDP lookup and RFCOMM connect are
+ * already done when ALARM_ALERT arrives. The alarm goes to PrewarmReceiver,
+ * which keeps the device awake until the service has connected.
+ *
+ * The next alarm is read from the clock app's NEXT_ALARM_FORMATTED setting.
+ * If that is missing or cannot be parsed, the time of day of the last
+ * ALARM_ALERT is used to guess that the alarm will ring again tomorrow.
+ */
+public class PrewarmScheduler {
+
+    private static final String TAG = "PrewarmScheduler";
+
+    public static final String ACTION_PREWARM = "com.github.qqrs.btalarm.PREWARM";
+
+    // Default timing
+    public static final long DEFAULT_LEAD_MS = 60 * 1000;
+    public static final long DEFAULT_HOLD_MS = 5 * 60 * 1000;
+
+    // Formats used by the stock clock for NEXT_ALARM_FORMATTED
+    private static final String[] NEXT_ALARM_FORMATS = { "E h:mm aa", "E k:mm" };
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    /**
+     * (Re)schedule the pre-warm for the next alarm, or cancel it if there is
+     * no upcoming alarm or the Bluetooth alarm is disabled.
+     */
+    public static void schedule(Context context) {
+        AlarmConfig config = ConfigStore.get(context).get();
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent operation = getPrewarmIntent(context);
+
+        long now = System.currentTimeMillis();
+        long nextAlarm = getNextAlarmTime(context, config, now);
+        if (nextAlarm <= 0 || !config.isEnabled() || config.getDeviceAddress() == null) {
+            Log.d(TAG, "no pre-warm scheduled");
+            alarmManager.cancel(operation);
+            return;
+        }
+
+        long lead = config.getPrewarmLeadMs();
+        long triggerAt = Math.max(now, nextAlarm - lead);
+        Log.d(TAG, "next alarm " + new Date(nextAlarm) + ", pre-warm at " + new Date(triggerAt));
+        alarmManager.set(AlarmManager.RTC_WAKEUP, triggerAt, operation);
+    }
+
+    /**
+     * Remember when an alarm actually rang, used when the clock app does not
+     * publish the next alarm time.
+     */
+    public static void recordAlarm(Context context, long time) {
+        ConfigStore.get(context).edit().setLastAlarmTime(time).apply();
+    }
+
+    /**
+     * How long a pre-warmed connection is held open waiting for the alert.
+     */
+    public static long getHoldMs(Context context) {
+        return ConfigStore.get(context).get().getPrewarmLeadMs() + DEFAULT_HOLD_MS;
+    }
+
+    private static PendingIntent getPrewarmIntent(Context context) {
+        Intent intent = new Intent(context, PrewarmReceiver.class);
+        intent.setAction(ACTION_PREWARM);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Return the time of the next alarm in milliseconds since the epoch, or 0
+     * if it is unknown.
+     */
+    private static long getNextAlarmTime(Context context, AlarmConfig config, long now) {
+        String formatted = Settings.System.getString(context.getContentResolver(),
+                Settings.System.NEXT_ALARM_FORMATTED);
+        if (formatted != null && formatted.length() > 0) {
+            long next = parseNextAlarm(formatted, now);
+            if (next > 0) {
+                return next;
+            }
+            Log.w(TAG, "could not parse next alarm: " + formatted);
+        }
+
+        // Fall back to the same time of day as the last alarm
+        long last = config.getLastAlarmTime();
+        if (last <= 0) {
+            return 0;
+        }
+        long next = last + DAY_MS;
+        while (next <= now) {
+            next += DAY_MS;
+        }
+        return next;
+    }
+
+    /**
+     * Parse a day of week and time such as "Wed 7:00 AM" into the next
+     * matching time after now.
+     */
+    static long parseNextAlarm(String formatted, long now) {
+        Calendar parsed = null;
+        for (String format : NEXT_ALARM_FORMATS) {
+            try {
+                Date date = new SimpleDateFormat(format, Locale.getDefault()).parse(formatted);
+                parsed = Calendar.getInstance();
+                parsed.setTime(date);
+                break;
+            } catch (ParseException e) {
+                // try the next format
+            }
+        }
+        if (parsed == null) {
+            return 0;
+        }
+
+        Calendar next = Calendar.getInstance();
+        next.setTimeInMillis(now);
+        next.set(Calendar.HOUR_OF_DAY, parsed.get(Calendar.HOUR_OF_DAY));
+        next.set(Calendar.MINUTE, parsed.get(Calendar.MINUTE));
+        next.set(Calendar.SECOND, 0);
+        next.set(Calendar.MILLISECOND, 0);
+        for (int i = 0; i < 8; i++) {
+            if (next.get(Calendar.DAY_OF_WEEK) == parsed.get(Calendar.DAY_OF_WEEK)
+                    && next.getTimeInMillis() > now) {
+                return next.getTimeInMillis();
+            }
+            next.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,377 @@
+package com.github.qqrs.btalarm;
+
+import android.util.Log;
+
+/**
+ * Sends RN41 commands one at a time and waits for the module's reply before
+ * returning, so that a sequence can send the next command as soon as the
+ * module is ready instead of after a fixed delay.
+ *
+ * "$$$" waits for "CMD", "S&" for "AOK", "---" for "END" and "g&" for the
+ * status line. "$$$" is only recognised by the module after a quiet period
+ * with no other data, so it is held back until GUARD_MS after the last write.
+ * Each command has its own timeout. Only replies read after a command was
+ * queued count for it: the expected reply completes it, "ERR" or "?" fails
+ * it at once, and anything else, such as a line the module sent on its own,
+ * is ignored.
+ *
+ * A pipeline talks to a single device, so each connected module gets its
+ * own pipeline and the modules are driven independently. Commands from
+ * several threads, e.g. a ring sequence and the GpioMonitor, are sent one
+ * at a time, each waiting for the previous one's reply.
+ *
+ * The module's mode and pins are tracked by BluetoothService. A command
+ * that would not change them, such as "S&" for a relay that is already in
+ * that state, is not sent at all and counts as acknowledged.
+ */
+public class RN41CommandPipeline implements BluetoothService.ReadListener,
+        RN41ResponseParser.Listener, WriteQueue.Callback {
+
+    private static final String TAG = "RN41CommandPipeline";
+
+    // Quiet time required before the escape sequence
+    public static final long GUARD_MS = 100;
+
+    // Reply timeouts
+    public static final long TIMEOUT_BEGIN_MS = 1500;
+    public static final long TIMEOUT_CMD_MS = 1000;
+
+    // How many times executeVerified() sends a relay command
+    public static final int MAX_SET_ATTEMPTS = 3;
+
+    // No reply before the timeout
+    private static final int REPLY_NONE = 0;
+    // The command could not be written
+    private static final int REPLY_WRITE_FAILED = -1;
+
+    private final BluetoothService mService;
+    private final String mAddress;
+
+    // Reply state, guarded by this
+    private final RN41ResponseParser mParser = new RN41ResponseParser(this);
+    // The command waiting for a reply and the reply it waits for, or null
+    private byte[] mCommand;
+    private int mExpected = REPLY_NONE;
+    private int mReply = REPLY_NONE;
+    private int mReplyValue = 0;
+    // When the last command reached the socket, and how many are still
+    // queued, for the guard time; guarded by this
+    private long mLastWriteNanos = 0;
+    private int mWritesPending = 0;
+
+    // Held while a command is sent and its reply awaited
+    private final Object mCommandLock = new Object();
+
+    private final CommandModeSession mSession = new CommandModeSession(this);
+
+    /**
+     * @param service  The service holding the connection
+     * @param address  The address of the device to send to
+     */
+    public RN41CommandPipeline(BluetoothService service, String address) {
+        mService = service;
+        mAddress = address;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /** The session that keeps this module in command mode. */
+    public CommandModeSession getSession() {
+        return mSession;
+    }
+
+    /** Start listening for replies on the device's connection. */
+    public void attach() {
+        synchronized (this) {
+            mParser.reset();
+        }
+        mService.addReadListener(this);
+    }
+
+    public void detach() {
+        mService.removeReadListener(this);
+    }
+
+    /**
+     * Send one of the RN41Gpio commands and block until the module has
+     * acknowledged it.
+     * @param cmd  One of the RN41Gpio.CMD_* constants
+     * @return true if the expected reply arrived before the timeout
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public boolean execute(int cmd) throws InterruptedException {
+        int expected;
+        long timeoutMs = TIMEOUT_CMD_MS;
+        switch (cmd) {
+        case RN41Gpio.CMD_BEGIN:
+            expected = RN41ResponseParser.RESPONSE_CMD;
+            timeoutMs = TIMEOUT_BEGIN_MS;
+            break;
+        case RN41Gpio.CMD_END:
+            expected = RN41ResponseParser.RESPONSE_END;
+            break;
+        case RN41Gpio.CMD_ON:
+        case RN41Gpio.CMD_OFF:
+            expected = RN41ResponseParser.RESPONSE_AOK;
+            break;
+        case RN41Gpio.CMD_STATUS:
+            expected = RN41ResponseParser.RESPONSE_GPIO;
+            break;
+        default:
+            throw new IllegalArgumentException("unknown command " + cmd);
+        }
+        return execute(RN41Gpio.encode(cmd), expected, timeoutMs);
+    }
+
+    /**
+     * Send pre-encoded command bytes and block until the module replies.
+     * A command that would not change the module's state is skipped.
+     * @param command   The bytes to write
+     * @param expected  The RN41ResponseParser.RESPONSE_* reply that means success
+     * @param timeoutMs How long to wait for the reply
+     * @return true if the expected reply arrived before the timeout
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public boolean execute(byte[] command, int expected, long timeoutMs) throws InterruptedException {
+        synchronized (mCommandLock) {
+            return send(command, expected, timeoutMs);
+        }
+    }
+
+    /**
+     * Turn the relay on or off and confirm it by reading the pins back
+     * with "g&". If the command is not acknowledged or the pins do not
+     * match, only this command is sent again, after entering command mode
+     * again if needed, up to MAX_SET_ATTEMPTS times. Nothing is sent when
+     * the relay is already known to be in that state.
+     * @param cmd  RN41Gpio.CMD_ON or RN41Gpio.CMD_OFF
+     * @return true if the pins were read back as set
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public boolean executeVerified(int cmd) throws InterruptedException {
+        int values;
+        if (cmd == RN41Gpio.CMD_ON) {
+            values = RN41Gpio.PIN_RELAY;
+        } else if (cmd == RN41Gpio.CMD_OFF) {
+            values = 0;
+        } else {
+            throw new IllegalArgumentException("not a relay command " + cmd);
+        }
+
+        synchronized (mCommandLock) {
+            if (mService.isRedundant(mAddress, RN41Gpio.encode(cmd))) {
+                return true;
+            }
+            for (int attempt = 1; attempt <= MAX_SET_ATTEMPTS; attempt++) {
+                if (attempt > 1) {
+                    Log.w(TAG, mAddress + ": retrying " + new String(RN41Gpio.encode(cmd)).trim()
+                            + ", attempt " + attempt);
+                }
+                if (!enterCommandModeLocked() || !execute(cmd)) {
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                boolean read = execute(RN41Gpio.CMD_STATUS);
+                if (read) {
+                    AlarmLatency.recordVerify((System.nanoTime() - start) / 1000);
+                }
+                if (read && (getLastStatus() & RN41Gpio.PIN_RELAY) == values) {
+                    AlarmLatency.recordRelaySet(attempt, true);
+                    return true;
+                }
+            }
+        }
+        AlarmLatency.recordRelaySet(MAX_SET_ATTEMPTS, false);
+        return false;
+    }
+
+    /**
+     * Make sure the module is in command mode. When the mode is unknown
+     * the module is first asked for its status, since "$$$" is not
+     * answered in command mode; any reply at all means command mode.
+     * @return true if the module is in command mode
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public boolean enterCommandMode() throws InterruptedException {
+        synchronized (mCommandLock) {
+            return enterCommandModeLocked();
+        }
+    }
+
+    private boolean enterCommandModeLocked() throws InterruptedException {
+        int mode = mService.getModuleMode(mAddress);
+        if (mode == ModuleShadow.MODE_COMMAND) {
+            return true;
+        }
+        if (mode == ModuleShadow.MODE_UNKNOWN && (execute(RN41Gpio.CMD_STATUS) || isCommandMode())) {
+            return true;
+        }
+        return execute(RN41Gpio.CMD_BEGIN);
+    }
+
+    /**
+     * Send one of the RN41Gpio commands only if the module is already in
+     * command mode, so that it is not taken for data.
+     * @return true if the command was sent and acknowledged
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public boolean executeInCommandMode(int cmd) throws InterruptedException {
+        synchronized (mCommandLock) {
+            if (!isCommandMode()) {
+                return false;
+            }
+            return execute(cmd);
+        }
+    }
+
+    /** Whether the module is in command mode, as judged by its replies. */
+    public boolean isCommandMode() {
+        return mService.getModuleMode(mAddress) == ModuleShadow.MODE_COMMAND;
+    }
+
+    private boolean send(byte[] command, int expected, long timeoutMs) throws InterruptedException {
+        if (mService.isRedundant(mAddress, command)) {
+            return true;
+        }
+        if (expected == RN41ResponseParser.RESPONSE_CMD) {
+            waitForGuardTime();
+        }
+
+        synchronized (this) {
+            // Replies to earlier commands that come in from now on are
+            // ignored, unless they look like the one expected
+            mCommand = command;
+            mExpected = expected;
+            mReply = REPLY_NONE;
+            mWritesPending++;
+        }
+
+        mService.write(mAddress, command, this);
+
+        int reply = awaitReply(timeoutMs);
+        if (reply == REPLY_NONE || reply == REPLY_WRITE_FAILED) {
+            // Whether the module saw the command is anyone's guess
+            mService.forgetModuleState(mAddress);
+        }
+        if (reply != expected) {
+            Log.w(TAG, mAddress + ": command " + new String(command).trim() + " failed, reply " + reply);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wait until every earlier command has reached the socket and the line
+     * has been quiet for GUARD_MS since. The time is taken when the writer
+     * thread sends a command, not when it is queued, which can be much
+     * earlier when the queue is backed up. A writer that is stuck for
+     * longer than TIMEOUT_BEGIN_MS is given up on.
+     */
+    private synchronized void waitForGuardTime() throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT_BEGIN_MS * 1000000L;
+        while (true) {
+            long remainingMs = (deadline - System.nanoTime()) / 1000000L;
+            if (mWritesPending > 0 && remainingMs > 0) {
+                wait(remainingMs);
+                continue;
+            }
+            long quietMs = (System.nanoTime() - mLastWriteNanos) / 1000000L;
+            if (mLastWriteNanos == 0 || quietMs >= GUARD_MS) {
+                return;
+            }
+            wait(GUARD_MS - quietMs);
+        }
+    }
+
+    /**
+     * Wait for the reply to the command being sent, then stop waiting for
+     * it.
+     * @return the reply, or REPLY_NONE on timeout
+     */
+    private synchronized int awaitReply(long timeoutMs) throws InterruptedException {
+        try {
+            long deadline = System.nanoTime() + timeoutMs * 1000000L;
+            while (mReply == REPLY_NONE) {
+                long remainingMs = (deadline - System.nanoTime()) / 1000000L;
+                if (remainingMs <= 0) {
+                    break;
+                }
+                wait(remainingMs);
+            }
+            return mReply;
+        } finally {
+            mCommand = null;
+            mExpected = REPLY_NONE;
+        }
+    }
+
+    /**
+     * The pin values from the last successful CMD_STATUS.
+     */
+    public synchronized int getLastStatus() {
+        return mReplyValue;
+    }
+
+    /**
+     * Called on a connection thread with each chunk read from a module.
+     */
+    public void onRead(String address, byte[] buffer, int length) {
+        if (!mAddress.equals(address)) {
+            return;
+        }
+        synchronized (this) {
+            mParser.feed(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Called on the writer thread once a command has been sent, or right
+     * away if it was refused. A write that failed ends the wait for its
+     * reply at once.
+     */
+    public void onWriteComplete(byte[] data, boolean success) {
+        if (success) {
+            if (data.length > 0 && data[0] == '$') {
+                AlarmLatency.mark(AlarmLatency.STAGE_BEGIN_WRITTEN);
+            } else if (data.length > 0 && data[0] == 'S') {
+                AlarmLatency.mark(AlarmLatency.STAGE_GPIO_WRITTEN);
+            }
+        }
+        synchronized (this) {
+            mWritesPending--;
+            if (success) {
+                mLastWriteNanos = System.nanoTime();
+            } else if (data == mCommand && mReply == REPLY_NONE) {
+                mReply = REPLY_WRITE_FAILED;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Called by the parser, with the lock held, for each complete reply.
+     */
+    public void onResponse(int type, int value) {
+        if (mExpected == REPLY_NONE || mReply != REPLY_NONE) {
+            // Nobody is waiting, or the command was already answered
+            return;
+        }
+        if (type == mExpected) {
+            if (type == RN41ResponseParser.RESPONSE_CMD) {
+                AlarmLatency.mark(AlarmLatency.STAGE_CMD_ACK);
+            } else if (type == RN41ResponseParser.RESPONSE_AOK) {
+                AlarmLatency.mark(AlarmLatency.STAGE_AOK_ACK);
+            } else if (type == RN41ResponseParser.RESPONSE_GPIO) {
+                mReplyValue = value;
+            }
+        } else if (type != RN41ResponseParser.RESPONSE_ERR && type != RN41ResponseParser.RESPONSE_UNKNOWN) {
+            // Not an answer to this command
+            return;
+        }
+        mReply = type;
+        notifyAll();
+    }
+}
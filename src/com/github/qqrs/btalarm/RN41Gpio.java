@@ -6,7 +6,8 @@ package com.github.qqrs.btalarm;
 import android.content.Context;
 
 /**
- *
+ * Commands for the GPIO pins of an RN41 module. Every command is encoded to
+ * bytes once and shared, so sending one never allocates.
  */
 public class RN41Gpio {
 
@@ -18,37 +19,104 @@ public class RN41Gpio {
 
     public static final int CMD_DISCONNECT = 100;
 
+    // Pin bits for "S&" and "g&", which address GPIO 0-7. Only GPIO 0-3
+    // are modelled: GPIO 4-7 select the module's own functions (factory
+    // reset, status LED, auto connect, baud rate) and are never driven, and
+    // keeping the mask to a nibble lets every "S&" be encoded in advance.
+    // GPIO 8-11 are driven with "S*" instead.
+    public static final int PIN_GPIO0 = 0x01;
+    public static final int PIN_GPIO1 = 0x02;
+    public static final int PIN_GPIO2 = 0x04;
+    public static final int PIN_GPIO3 = 0x08;
+    public static final int PIN_ALL = 0x0F;
+
+    // The relay board is wired to GPIO 3
+    public static final int PIN_RELAY = PIN_GPIO3;
+
     private static final String MSG_BEGIN = "$$$";
     private static final String MSG_END = "---\n";
-    private static final String MSG_ON = "S&,0808\n";
-    private static final String MSG_OFF = "S&,0800\n";
     private static final String MSG_STATUS = "g&\n";
 
-    public static void sendCmd(Context context, BluetoothService service, int cmd) {
-        String msg = null;
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
 
+    // Every possible "S&,MMVV\n" command, indexed by (mask << 4) | values
+    private static final byte[][] SET_COMMANDS = new byte[(PIN_ALL + 1) * (PIN_ALL + 1)][];
+    static {
+        for (int mask = 0; mask <= PIN_ALL; mask++) {
+            for (int values = 0; values <= PIN_ALL; values++) {
+                SET_COMMANDS[(mask << 4) | values] = new byte[] {
+                    'S', '&', ',',
+                    HEX_DIGITS[mask >> 4], HEX_DIGITS[mask & 0xF],
+                    HEX_DIGITS[values >> 4], HEX_DIGITS[values & 0xF],
+                    '\n'
+                };
+            }
+        }
+    }
+
+    // Encoded once, shared by every send
+    private static final byte[] BYTES_BEGIN = MSG_BEGIN.getBytes();
+    private static final byte[] BYTES_END = MSG_END.getBytes();
+    private static final byte[] BYTES_ON = encodeSet(PIN_RELAY, PIN_RELAY);
+    private static final byte[] BYTES_OFF = encodeSet(PIN_RELAY, 0);
+    private static final byte[] BYTES_STATUS = MSG_STATUS.getBytes();
+
+    /**
+     * Return the bytes to send for a command. The array is shared and must
+     * not be modified.
+     */
+    public static byte[] encode(int cmd) {
         switch (cmd) {
         case CMD_BEGIN:
-            msg = MSG_BEGIN;
-            break;
+            return BYTES_BEGIN;
         case CMD_END:
-            msg = MSG_END;
-            break;
+            return BYTES_END;
         case CMD_ON:
-            msg = MSG_ON;
-            break;
+            return BYTES_ON;
         case CMD_OFF:
-            msg = MSG_OFF;
-            break;
+            return BYTES_OFF;
         case CMD_STATUS:
-            msg = MSG_STATUS;
-            break;
+            return BYTES_STATUS;
         }
+        throw new IllegalArgumentException("unknown command " + cmd);
+    }
 
-        if (msg.length() > 0) {
-            byte[] send = msg.getBytes();
-            service.write(send);
+    /**
+     * Return the "S&" command that sets the pins in mask to the matching bits
+     * of values and leaves the other pins alone. Several pins can be set in
+     * one command. All commands are encoded when the class is loaded, so this
+     * never allocates; the array is shared and must not be modified.
+     * @param mask    PIN_* bits to change
+     * @param values  New values for those pins; bits outside mask are ignored
+     */
+    public static byte[] encodeSet(int mask, int values) {
+        if ((mask & ~PIN_ALL) != 0) {
+            throw new IllegalArgumentException("mask out of range: " + mask);
         }
+        return SET_COMMANDS[(mask << 4) | (values & mask)];
+    }
+
+    /**
+     * Set several GPIO pins with one command. The module must already be in
+     * command mode.
+     */
+    public static void setPins(BluetoothService service, int mask, int values) {
+        service.write(encodeSet(mask, values));
+    }
+
+    public static void sendCmd(Context context, BluetoothService service, int cmd) {
+        sendCmd(service, cmd);
+    }
+
+    public static void sendCmd(BluetoothService service, int cmd) {
+        service.write(encode(cmd));
+    }
+
+    /**
+     * Send a command to one device only.
+     */
+    public static void sendCmd(BluetoothService service, String address, int cmd) {
+        service.write(address, encode(cmd));
     }
 
 }
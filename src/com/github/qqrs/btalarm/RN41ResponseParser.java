@@ -0,0 +1,113 @@
+package com.github.qqrs.btalarm;
+
+/**
+ * Turns the raw bytes read from an RN41 into typed responses.
+ *
+ * Bytes may arrive in chunks that split a reply anywhere; the parser keeps
+ * the partial line in a fixed buffer and reports each complete line once its
+ * "\r" or "\n" terminator arrives. Lines are matched byte by byte, so feeding
+ * data never allocates.
+ */
+public class RN41ResponseParser {
+
+    // Response types
+    public static final int RESPONSE_CMD = 1;     // entered command mode
+    public static final int RESPONSE_AOK = 2;     // command accepted
+    public static final int RESPONSE_ERR = 3;     // command rejected
+    public static final int RESPONSE_END = 4;     // left command mode
+    public static final int RESPONSE_UNKNOWN = 5; // "?", command not recognised
+    public static final int RESPONSE_GPIO = 6;    // hex pin values from "g&"
+    public static final int RESPONSE_OTHER = 7;   // any other line
+
+    private static final int MAX_LINE = 64;
+
+    /**
+     * Receives parsed responses, on the thread that calls feed().
+     */
+    public interface Listener {
+        /**
+         * @param type   One of the RESPONSE_* constants
+         * @param value  The pin values for RESPONSE_GPIO, otherwise 0
+         */
+        void onResponse(int type, int value);
+    }
+
+    private final Listener mListener;
+    private final byte[] mLine = new byte[MAX_LINE];
+    private int mLineLength = 0;
+    private boolean mOverflow = false;
+
+    public RN41ResponseParser(Listener listener) {
+        mListener = listener;
+    }
+
+    /** Parse the next chunk of bytes from the module. */
+    public void feed(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            if (b == '\r' || b == '\n') {
+                if (mLineLength > 0 || mOverflow) {
+                    dispatchLine();
+                }
+            } else if (mLineLength < MAX_LINE) {
+                mLine[mLineLength++] = b;
+            } else {
+                mOverflow = true;
+            }
+        }
+    }
+
+    /** Drop any partial line, e.g. after reconnecting. */
+    public void reset() {
+        mLineLength = 0;
+        mOverflow = false;
+    }
+
+    private void dispatchLine() {
+        int type;
+        int value = 0;
+        if (mOverflow) {
+            type = RESPONSE_OTHER;
+        } else if (lineEquals('C', 'M', 'D')) {
+            type = RESPONSE_CMD;
+        } else if (lineEquals('A', 'O', 'K')) {
+            type = RESPONSE_AOK;
+        } else if (lineEquals('E', 'R', 'R')) {
+            type = RESPONSE_ERR;
+        } else if (lineEquals('E', 'N', 'D')) {
+            type = RESPONSE_END;
+        } else if (mLineLength == 1 && mLine[0] == '?') {
+            type = RESPONSE_UNKNOWN;
+        } else if ((value = parseHex()) >= 0) {
+            type = RESPONSE_GPIO;
+        } else {
+            type = RESPONSE_OTHER;
+            value = 0;
+        }
+        reset();
+        mListener.onResponse(type, value);
+    }
+
+    private boolean lineEquals(char c0, char c1, char c2) {
+        return mLineLength == 3 && mLine[0] == c0 && mLine[1] == c1 && mLine[2] == c2;
+    }
+
+    /**
+     * @return the value of a line of one to four hex digits, or -1
+     */
+    private int parseHex() {
+        if (mLineLength == 0 || mLineLength > 4) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < mLineLength; i++) {
+            int digit = Character.digit(mLine[i], 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+}
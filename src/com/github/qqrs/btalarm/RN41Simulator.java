@@ -0,0 +1,308 @@
+package com.github.qqrs.btalarm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-process stand-in for an RN41 module, so that connect, write and read
+ * latency can be measured without a device on the bench. It understands the
+ * subset of the RN41 command set that this app uses:
+ *
+ *   "$$$"      enter command mode, replies "CMD"
+ *   "S&,MMVV"  set the GPIO pins in mask MM to the values VV, replies "AOK"
+ *   "g&"       report the GPIO pin values as hex
+ *   "---"      leave command mode, replies "END"
+ *
+ * Anything else in command mode replies "?". Replies are terminated with
+ * "\r\n" like the real module and become readable after the configured
+ * response latency. Everything here is plain Java so that it also runs
+ * outside of Android.
+ */
+public class RN41Simulator implements SerialTransport {
+
+    public static final long DEFAULT_CONNECT_LATENCY_MS = 0;
+    public static final long DEFAULT_RESPONSE_LATENCY_MS = 20;
+
+    private static final String REPLY_CMD = "CMD\r\n";
+    private static final String REPLY_AOK = "AOK\r\n";
+    private static final String REPLY_END = "END\r\n";
+    private static final String REPLY_ERR = "ERR\r\n";
+    private static final String REPLY_UNKNOWN = "?\r\n";
+
+    private static final int MAX_LINE = 64;
+
+    /**
+     * Creates simulators and remembers them by address so that tests and
+     * benchmarks can inspect the simulated pin state.
+     */
+    public static class Factory implements SerialTransport.Factory {
+        private final long mConnectLatencyMs;
+        private final long mResponseLatencyMs;
+        private final Map<String, RN41Simulator> mSimulators = new HashMap<String, RN41Simulator>();
+
+        public Factory() {
+            this(DEFAULT_CONNECT_LATENCY_MS, DEFAULT_RESPONSE_LATENCY_MS);
+        }
+
+        public Factory(long connectLatencyMs, long responseLatencyMs) {
+            mConnectLatencyMs = connectLatencyMs;
+            mResponseLatencyMs = responseLatencyMs;
+        }
+
+        public synchronized SerialTransport create(String address) {
+            RN41Simulator simulator = new RN41Simulator(address, mConnectLatencyMs, mResponseLatencyMs);
+            mSimulators.put(address, simulator);
+            return simulator;
+        }
+
+        /** Return the most recently created simulator for an address, or null. */
+        public synchronized RN41Simulator getSimulator(String address) {
+            return mSimulators.get(address);
+        }
+    }
+
+    private final String mAddress;
+    private final long mConnectLatencyMs;
+    private volatile long mResponseLatencyMs;
+
+    private final ReplyInputStream mInStream = new ReplyInputStream();
+    private final OutputStream mOutStream = new CommandOutputStream();
+
+    // Simulated module state, guarded by this
+    private boolean mCommandMode = false;
+    private int mEscapeCount = 0;
+    private int mGpio = 0;
+    private final byte[] mLine = new byte[MAX_LINE];
+    private int mLineLength = 0;
+    private volatile boolean mClosed = false;
+
+    public RN41Simulator(String address, long connectLatencyMs, long responseLatencyMs) {
+        mAddress = address;
+        mConnectLatencyMs = connectLatencyMs;
+        mResponseLatencyMs = responseLatencyMs;
+    }
+
+    public void connect() throws IOException {
+        if (mConnectLatencyMs > 0) {
+            try {
+                Thread.sleep(mConnectLatencyMs);
+            } catch (InterruptedException e) {
+                throw new IOException("connect interrupted");
+            }
+        }
+        if (mClosed) {
+            throw new IOException("socket closed");
+        }
+    }
+
+    public InputStream getInputStream() {
+        return mInStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOutStream;
+    }
+
+    public void close() {
+        mClosed = true;
+        mInStream.close();
+    }
+
+    public String getName() {
+        return "RN41-SIM " + mAddress;
+    }
+
+    public String getType() {
+        return "Simulated";
+    }
+
+    public void setResponseLatencyMs(long latencyMs) {
+        mResponseLatencyMs = latencyMs;
+    }
+
+    /**
+     * Make the module send bytes of its own accord, after the response
+     * latency, e.g. to drive the connection's read path. The array is
+     * not copied and must not be modified.
+     */
+    public void inject(byte[] data) {
+        mInStream.enqueue(data, System.nanoTime() + mResponseLatencyMs * 1000000L);
+    }
+
+    /** Current simulated GPIO pin values. */
+    public synchronized int getGpio() {
+        return mGpio;
+    }
+
+    public synchronized boolean isCommandMode() {
+        return mCommandMode;
+    }
+
+    private synchronized void receive(int b) {
+        if (!mCommandMode) {
+            // Data mode: bytes would go out of the UART, only watch for the escape
+            if (b == '$') {
+                if (++mEscapeCount == 3) {
+                    mEscapeCount = 0;
+                    mCommandMode = true;
+                    mLineLength = 0;
+                    reply(REPLY_CMD);
+                }
+            } else {
+                mEscapeCount = 0;
+            }
+            return;
+        }
+
+        if (b == '\r' || b == '\n') {
+            if (mLineLength > 0) {
+                execute(new String(mLine, 0, mLineLength));
+                mLineLength = 0;
+            }
+        } else if (mLineLength < MAX_LINE) {
+            mLine[mLineLength++] = (byte) b;
+            // "---" takes effect without a line terminator, like on the module
+            if (mLineLength == 3 && mLine[0] == '-' && mLine[1] == '-' && mLine[2] == '-') {
+                execute("---");
+                mLineLength = 0;
+            }
+        }
+    }
+
+    private void execute(String command) {
+        if (command.equals("---")) {
+            mCommandMode = false;
+            reply(REPLY_END);
+        } else if (command.startsWith("S&,")) {
+            try {
+                int word = Integer.parseInt(command.substring(3), 16);
+                int mask = (word >> 8) & 0xFF;
+                int values = word & 0xFF;
+                mGpio = (mGpio & ~mask) | (values & mask);
+                reply(REPLY_AOK);
+            } catch (NumberFormatException e) {
+                reply(REPLY_ERR);
+            }
+        } else if (command.equalsIgnoreCase("g&")) {
+            reply(String.format("%02X\r\n", mGpio));
+        } else {
+            reply(REPLY_UNKNOWN);
+        }
+    }
+
+    private void reply(String message) {
+        mInStream.enqueue(message.getBytes(), System.nanoTime() + mResponseLatencyMs * 1000000L);
+    }
+
+    /**
+     * Receives the bytes written by BluetoothService.
+     */
+    private class CommandOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            if (mClosed) {
+                throw new IOException("socket closed");
+            }
+            receive(b & 0xFF);
+        }
+    }
+
+    /**
+     * Replies queued by the simulator. A reply only becomes readable once its
+     * due time has passed, which models the response latency of the module.
+     * The queue is a ring buffer that only grows, so queueing and reading
+     * replies does not allocate once it is big enough.
+     */
+    private static class ReplyInputStream extends InputStream {
+        private byte[][] mChunks = new byte[16][];
+        private long[] mDueTimes = new long[16];
+        private int mHead = 0;
+        private int mCount = 0;
+        private int mOffset = 0;
+        private boolean mClosed = false;
+
+        synchronized void enqueue(byte[] chunk, long dueNanos) {
+            if (mCount == mChunks.length) {
+                byte[][] chunks = new byte[mCount * 2][];
+                long[] dueTimes = new long[mCount * 2];
+                for (int i = 0; i < mCount; i++) {
+                    chunks[i] = mChunks[(mHead + i) % mCount];
+                    dueTimes[i] = mDueTimes[(mHead + i) % mCount];
+                }
+                mChunks = chunks;
+                mDueTimes = dueTimes;
+                mHead = 0;
+            }
+            int tail = (mHead + mCount) % mChunks.length;
+            mChunks[tail] = chunk;
+            mDueTimes[tail] = dueNanos;
+            mCount++;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                while (true) {
+                    if (mClosed) {
+                        throw new IOException("socket closed");
+                    }
+                    if (mCount > 0) {
+                        long waitNanos = mDueTimes[mHead] - System.nanoTime();
+                        if (waitNanos <= 0) {
+                            break;
+                        }
+                        wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                    } else {
+                        wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("read interrupted");
+            }
+
+            // Return whatever has become due, without waiting for more
+            int count = 0;
+            long now = System.nanoTime();
+            while (count < length && mCount > 0 && mDueTimes[mHead] - now <= 0) {
+                byte[] chunk = mChunks[mHead];
+                int n = Math.min(length - count, chunk.length - mOffset);
+                System.arraycopy(chunk, mOffset, buffer, offset + count, n);
+                count += n;
+                mOffset += n;
+                if (mOffset == chunk.length) {
+                    mChunks[mHead] = null;
+                    mHead = (mHead + 1) % mChunks.length;
+                    mCount--;
+                    mOffset = 0;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+            int count = 0;
+            long now = System.nanoTime();
+            for (int i = 0; i < mCount && mDueTimes[(mHead + i) % mChunks.length] - now <= 0; i++) {
+                count += mChunks[(mHead + i) % mChunks.length].length;
+            }
+            return count - mOffset;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.qqrs.btalarm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A chunk of bytes read from the connected device. BluetoothService sends one
+ * of these with every MESSAGE_READ; the receiver owns the bytes until it calls
+ * release(), after which the buffer may be reused for a later read.
+ */
+public final class ReadBuffer {
+
+    /** The bytes read, valid from index 0 to length() - 1. */
+    public final byte[] data;
+
+    private final ReadBufferPool mPool;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private int mLength;
+
+    ReadBuffer(ReadBufferPool pool, int size) {
+        mPool = pool;
+        data = new byte[size];
+    }
+
+    /** Number of valid bytes in data. */
+    public int length() {
+        return mLength;
+    }
+
+    void setLength(int length) {
+        mLength = length;
+    }
+
+    /**
+     * Take over ownership from the pool. Only the reading thread calls this.
+     * @return true if the buffer was free
+     */
+    boolean claim() {
+        return mRefCount.compareAndSet(0, 1);
+    }
+
+    /** Add an owner. Every retain() must be matched by a release(). */
+    public void retain() {
+        mRefCount.incrementAndGet();
+    }
+
+    /**
+     * Give up ownership. Once the last owner has released the buffer its
+     * contents must no longer be used.
+     */
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count < 0) {
+            mRefCount.incrementAndGet();
+            throw new IllegalStateException("ReadBuffer released too often");
+        }
+        if (count == 0 && mPool != null) {
+            mPool.recycled();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.qqrs.btalarm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed ring of ReadBuffers for a single reading thread. acquire() hands out
+ * the next buffer that every previous owner has released, so the read loop does
+ * not allocate once the ring is warm. If all buffers are still owned because a
+ * consumer is slow or forgot to release, an unpooled buffer is allocated
+ * instead of overwriting data that is still in use.
+ */
+public class ReadBufferPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+    public static final int DEFAULT_POOL_SIZE = 16;
+
+    private final ReadBuffer[] mRing;
+    private final int mBufferSize;
+    private int mNext = 0;
+
+    // Statistics
+    private final AtomicInteger mRecycled = new AtomicInteger();
+    private final AtomicInteger mOverflows = new AtomicInteger();
+
+    public ReadBufferPool() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ReadBufferPool(int poolSize, int bufferSize) {
+        mBufferSize = bufferSize;
+        mRing = new ReadBuffer[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            mRing[i] = new ReadBuffer(this, bufferSize);
+        }
+    }
+
+    /**
+     * Return a buffer owned by the caller, with a reference count of one.
+     * Must only be called from the thread that owns this pool.
+     */
+    public ReadBuffer acquire() {
+        for (int i = 0; i < mRing.length; i++) {
+            ReadBuffer buffer = mRing[mNext];
+            mNext = (mNext + 1) % mRing.length;
+            if (buffer.claim()) {
+                return buffer;
+            }
+        }
+
+        // Every pooled buffer is still owned by someone
+        mOverflows.incrementAndGet();
+        ReadBuffer buffer = new ReadBuffer(null, mBufferSize);
+        buffer.claim();
+        return buffer;
+    }
+
+    void recycled() {
+        mRecycled.incrementAndGet();
+    }
+
+    /** Number of times a buffer was returned to the pool. */
+    public int getRecycledCount() {
+        return mRecycled.get();
+    }
+
+    /** Number of reads that had to allocate because the pool was exhausted. */
+    public int getOverflowCount() {
+        return mOverflows.get();
+    }
+}
@@ -0,0 +1,150 @@
+package com.github.qqrs.btalarm;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when BluetoothService tries again after a connection attempt
+ * fails or an established connection is lost, and keeps count of how that
+ * goes.
+ *
+ * Retries back off exponentially from INITIAL_DELAY_MS up to MAX_DELAY_MS.
+ * Each delay is randomized between half and all of its nominal value so
+ * that several devices that dropped together do not retry in lockstep.
+ * After MAX_ATTEMPTS failures in a row the circuit breaker opens and the
+ * device is left alone for BREAKER_OPEN_MS; then a single trial attempt is
+ * made, which closes the breaker if it succeeds and reopens it if it fails.
+ * This way a device that is switched off is retried slowly but forever,
+ * for as long as reconnecting is enabled.
+ */
+public class ReconnectPolicy {
+
+    // Default timing
+    public static final long INITIAL_DELAY_MS = 250;
+    public static final long MAX_DELAY_MS = 8 * 1000;
+    public static final int MAX_ATTEMPTS = 6;
+    public static final long BREAKER_OPEN_MS = 30 * 1000;
+
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final int mMaxAttempts;
+    private final long mBreakerOpenMs;
+    private final Random mRandom = new Random();
+
+    // Metrics
+    private final AtomicLong mAttempts = new AtomicLong();
+    private final AtomicLong mReconnects = new AtomicLong();
+    private final AtomicLong mBreakerTrips = new AtomicLong();
+    private final LatencyHistogram mTimeToReconnect = new LatencyHistogram("time to reconnect");
+
+    public ReconnectPolicy() {
+        this(INITIAL_DELAY_MS, MAX_DELAY_MS, MAX_ATTEMPTS, BREAKER_OPEN_MS);
+    }
+
+    public ReconnectPolicy(long initialDelayMs, long maxDelayMs, int maxAttempts, long breakerOpenMs) {
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mMaxAttempts = maxAttempts;
+        mBreakerOpenMs = breakerOpenMs;
+    }
+
+    /**
+     * The reconnect state of one device. Not thread safe; BluetoothService
+     * only uses it with the device's lock held.
+     */
+    public static final class Backoff {
+        private int mFailures = 0;
+        private boolean mBreakerOpen = false;
+        private long mOutageStartNanos = 0;
+
+        public int getFailures() {
+            return mFailures;
+        }
+
+        public boolean isBreakerOpen() {
+            return mBreakerOpen;
+        }
+
+        /** Forget all failures, e.g. after an explicit connect or stop. */
+        public void reset() {
+            mFailures = 0;
+            mBreakerOpen = false;
+            mOutageStartNanos = 0;
+        }
+    }
+
+    /**
+     * Record a failed attempt or lost connection and return how long to
+     * wait before the next attempt.
+     */
+    public long nextDelayMs(Backoff backoff) {
+        if (backoff.mOutageStartNanos == 0) {
+            backoff.mOutageStartNanos = System.nanoTime();
+        }
+
+        if (backoff.mBreakerOpen) {
+            // The trial attempt failed, stay open
+            return mBreakerOpenMs;
+        }
+
+        backoff.mFailures++;
+        if (backoff.mFailures > mMaxAttempts) {
+            backoff.mBreakerOpen = true;
+            mBreakerTrips.incrementAndGet();
+            return mBreakerOpenMs;
+        }
+
+        // The first retry after a lost connection is immediate
+        if (backoff.mFailures == 1) {
+            return 0;
+        }
+        long delay = mInitialDelayMs << Math.min(backoff.mFailures - 2, 20);
+        delay = Math.min(delay, mMaxDelayMs);
+        synchronized (mRandom) {
+            return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        }
+    }
+
+    /** Count an attempt started by the reconnect timer. */
+    public void onAttempt() {
+        mAttempts.incrementAndGet();
+    }
+
+    /**
+     * Record a successful connection and reset the device's state.
+     */
+    public void onConnected(Backoff backoff) {
+        if (backoff.mOutageStartNanos != 0) {
+            mReconnects.incrementAndGet();
+            mTimeToReconnect.record((System.nanoTime() - backoff.mOutageStartNanos) / 1000);
+        }
+        backoff.reset();
+    }
+
+    public long getAttempts() {
+        return mAttempts.get();
+    }
+
+    public long getReconnects() {
+        return mReconnects.get();
+    }
+
+    public long getBreakerTrips() {
+        return mBreakerTrips.get();
+    }
+
+    public void resetStats() {
+        mAttempts.set(0);
+        mReconnects.set(0);
+        mBreakerTrips.set(0);
+        mTimeToReconnect.reset();
+    }
+
+    /** Human readable summary of the metrics. */
+    public String report() {
+        return "reconnect attempts " + mAttempts.get()
+                + ", reconnects " + mReconnects.get()
+                + ", breaker trips " + mBreakerTrips.get() + "\n"
+                + mTimeToReconnect.summary();
+    }
+}
@@ -0,0 +1,278 @@
+package com.github.qqrs.btalarm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+/**
+ * SerialTransport backed by an RFCOMM socket to the Serial Port Profile
+ * service of a Bluetooth device.
+ *
+ * connect() races up to three ways of connecting with a ConnectRacer, in
+ * order of preference:
+ *  - straight to the RFCOMM channel remembered by the DeviceProfileCache,
+ *    which skips the SDP lookup of the service record
+ *  - insecure, looking the channel up by UUID
+ *  - secure, looking the channel up by UUID, for modules that insist on
+ *    authentication
+ * and keeps the first socket that connects. The module only accepts one
+ * link, so the lookup is only started once the cached channel has had
+ * twice its last connect time, at least MIN_STAGGER_MS, to connect, and the
+ * secure attempt, which may ask the user to pair, only once both insecure
+ * ones have failed. The channel is connected with
+ * the hidden createInsecureRfcommSocket(int) and read back from the socket
+ * after a lookup, both by reflection; where either is missing the cached
+ * channel is simply never tried.
+ */
+public class RfcommTransport implements SerialTransport {
+
+    private static final String TAG = "RfcommTransport";
+
+    // UUID for Bluetooth Serial Port Profile (SPP)
+    private static final UUID MY_UUID =
+        UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    // Connect strategies, as recorded in the DeviceProfileCache
+    public static final String STRATEGY_CACHED_CHANNEL = "cached channel";
+    public static final String STRATEGY_INSECURE = "insecure";
+    public static final String STRATEGY_SECURE = "secure";
+
+    // How long the cached channel may take before the lookup is started
+    private static final long MIN_STAGGER_MS = 3000;
+
+    /** Connects with an SDP lookup every time. */
+    public static final SerialTransport.Factory FACTORY = new Factory(null);
+
+    /**
+     * Creates transports that use and update a profile cache.
+     */
+    public static class Factory implements SerialTransport.Factory {
+        private final DeviceProfileCache mProfiles;
+
+        /** @param profiles  The cache to use, or null for none */
+        public Factory(DeviceProfileCache profiles) {
+            mProfiles = profiles;
+        }
+
+        public SerialTransport create(String address) throws IOException {
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            return new RfcommTransport(adapter, adapter.getRemoteDevice(address), mProfiles);
+        }
+    }
+
+    // Hidden API, looked up once; null where it is not available
+    private static final Method sCreateOnChannel;
+    private static final Field sPortField;
+
+    static {
+        Method create = null;
+        try {
+            create = BluetoothDevice.class.getMethod("createInsecureRfcommSocket", int.class);
+        } catch (Exception e) {
+            Log.w(TAG, "createInsecureRfcommSocket(int) not available", e);
+        }
+        sCreateOnChannel = create;
+
+        Field port = null;
+        try {
+            port = BluetoothSocket.class.getDeclaredField("mPort");
+            port.setAccessible(true);
+        } catch (Exception e) {
+            Log.w(TAG, "BluetoothSocket.mPort not available", e);
+        }
+        sPortField = port;
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final BluetoothDevice mDevice;
+    private final DeviceProfileCache mProfiles;
+    private volatile BluetoothSocket mSocket;
+    private volatile ConnectRacer<BluetoothSocket> mRacer;
+    private volatile boolean mClosed = false;
+    private String mType = STRATEGY_INSECURE;
+
+    public RfcommTransport(BluetoothAdapter adapter, BluetoothDevice device) throws IOException {
+        this(adapter, device, null);
+    }
+
+    public RfcommTransport(BluetoothAdapter adapter, BluetoothDevice device, DeviceProfileCache profiles)
+            throws IOException {
+        mAdapter = adapter;
+        mDevice = device;
+        mProfiles = profiles;
+    }
+
+    public void connect() throws IOException {
+        // Always cancel discovery because it will slow down a connection
+        mAdapter.cancelDiscovery();
+
+        String address = mDevice.getAddress();
+        List<SocketAttempt> attempts = new ArrayList<SocketAttempt>();
+        DeviceProfileCache.Profile profile = mProfiles != null ? mProfiles.get(address) : null;
+        long[] staggerMs;
+        if (profile != null && profile.channel > 0 && sCreateOnChannel != null) {
+            attempts.add(new SocketAttempt(STRATEGY_CACHED_CHANNEL, profile.channel));
+            staggerMs = new long[] {
+                Math.max(MIN_STAGGER_MS, 2 * profile.connectMs), ConnectRacer.ON_FAILURE
+            };
+        } else {
+            staggerMs = new long[] { ConnectRacer.ON_FAILURE };
+        }
+        attempts.add(new SocketAttempt(STRATEGY_INSECURE, 0));
+        attempts.add(new SocketAttempt(STRATEGY_SECURE, 0));
+
+        ConnectRacer<BluetoothSocket> racer =
+                new ConnectRacer<BluetoothSocket>("Connect " + address, attempts, staggerMs);
+        mRacer = racer;
+        if (mClosed) {
+            throw new IOException("transport closed");
+        }
+
+        long start = System.nanoTime();
+        BluetoothSocket socket = racer.run();
+        long connectUs = (System.nanoTime() - start) / 1000;
+        mSocket = socket;
+        if (mClosed) {
+            socket.close();
+            throw new IOException("transport closed");
+        }
+
+        SocketAttempt winner = (SocketAttempt) racer.getWinner();
+        mType = winner.getName();
+        if (mProfiles != null) {
+            int connected = winner.mChannel > 0 ? winner.mChannel : readChannel(socket);
+            mProfiles.recordConnect(address, connected, winner.getName(), connectUs);
+        }
+    }
+
+    /**
+     * One way of opening a socket to the device.
+     */
+    private class SocketAttempt implements ConnectRacer.Attempt<BluetoothSocket> {
+        private final String mName;
+        private final int mChannel;
+        private volatile BluetoothSocket mmSocket;
+        private volatile boolean mmCancelled = false;
+
+        /** @param channel  The channel to connect to, or 0 to look it up */
+        SocketAttempt(String name, int channel) {
+            mName = name;
+            mChannel = channel;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public BluetoothSocket connect() throws IOException {
+            BluetoothSocket socket;
+            if (mChannel > 0) {
+                socket = createOnChannel(mChannel);
+            } else if (STRATEGY_SECURE.equals(mName)) {
+                socket = mDevice.createRfcommSocketToServiceRecord(MY_UUID);
+            } else {
+                socket = mDevice.createInsecureRfcommSocketToServiceRecord(MY_UUID);
+            }
+            mmSocket = socket;
+            if (mmCancelled) {
+                socket.close();
+                throw new IOException("cancelled");
+            }
+            try {
+                socket.connect();
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException e2) {
+                    Log.e(TAG, "unable to close() " + mName + " socket during connection failure", e2);
+                }
+                if (mChannel > 0 && !mmCancelled) {
+                    mProfiles.recordCachedFailure(mDevice.getAddress());
+                }
+                throw e;
+            }
+            return socket;
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+            BluetoothSocket socket = mmSocket;
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of " + mName + " socket failed", e);
+            }
+        }
+    }
+
+    private BluetoothSocket createOnChannel(int channel) throws IOException {
+        try {
+            return (BluetoothSocket) sCreateOnChannel.invoke(mDevice, channel);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("createInsecureRfcommSocket(" + channel + ") failed: " + cause);
+        } catch (IllegalAccessException e) {
+            throw new IOException("createInsecureRfcommSocket(" + channel + ") failed: " + e);
+        }
+    }
+
+    /**
+     * The channel a connected socket is on, or 0 if it cannot be read.
+     */
+    private static int readChannel(BluetoothSocket socket) {
+        if (sPortField == null) {
+            return 0;
+        }
+        try {
+            return sPortField.getInt(socket);
+        } catch (Exception e) {
+            Log.w(TAG, "unable to read RFCOMM channel", e);
+            return 0;
+        }
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    public void close() throws IOException {
+        mClosed = true;
+        ConnectRacer<BluetoothSocket> racer = mRacer;
+        if (racer != null) {
+            racer.cancel();
+        }
+        BluetoothSocket socket = mSocket;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    public String getName() {
+        return mDevice.getName();
+    }
+
+    public String getType() {
+        return mType;
+    }
+}
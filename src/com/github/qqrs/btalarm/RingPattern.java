@@ -0,0 +1,274 @@
+package com.github.qqrs.btalarm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A ring pattern compiled into a ready-to-play timeline of relay commands.
+ *
+ * Patterns are written as a list of steps and groups:
+ *
+ *   on:1000          turn the relay on and hold it for 1000 ms
+ *   off:4000         turn the relay off and hold it for 4000 ms
+ *   [ ... ]x3        repeat the group three times
+ *   [ ... ]*         repeat the group until the alarm is stopped
+ *
+ * A step without a duration is held for DEFAULT_HOLD_MS. Groups may be
+ * nested, and only the last item of a pattern may repeat forever; one pass
+ * of such a group must last at least MIN_LOOP_MS. Escalation
+ * is written as successive groups, e.g.
+ *
+ *   [on:200 off:2000]x3 [on:500 off:1000]x3 [on:1000 off:500]*
+ *
+ * compile() expands the pattern once into parallel arrays of relay
+ * commands and hold times, so playing it back at alarm time is a plain walk
+ * over the arrays.
+ */
+public final class RingPattern {
+
+    public static final long DEFAULT_HOLD_MS = 1000;
+
+    // Upper limit on the expanded timeline, to reject runaway repeats
+    public static final int MAX_STEPS = 256;
+
+    // Lower limit on one pass of a group that repeats forever, so that a
+    // pattern like "[on:0 off:0]*" cannot flood the module with commands
+    public static final long MIN_LOOP_MS = 100;
+
+    // Built-in patterns for the ring styles offered in the UI
+    private static final RingPattern[] STYLES = {
+        compile("on"),                      // RING_STYLE_CONTINUOUS
+        compile("on:1000 off"),             // RING_STYLE_SINGLE_RING
+        compile("[on:1000 off:4000]*"),     // RING_STYLE_REPEATED_RING
+    };
+
+    private final String mSource;
+    private final int[] mCmds;
+    private final long[] mHoldMs;
+    private final int mLoopStart;
+
+    private RingPattern(String source, int[] cmds, long[] holdMs, int loopStart) {
+        mSource = source;
+        mCmds = cmds;
+        mHoldMs = holdMs;
+        mLoopStart = loopStart;
+    }
+
+    /**
+     * Return the compiled pattern for one of the BluetoothAlarm.RING_STYLE_*
+     * values, or null if the style is unknown.
+     */
+    public static RingPattern forStyle(int ringStyle) {
+        if (ringStyle < 0 || ringStyle >= STYLES.length) {
+            return null;
+        }
+        return STYLES[ringStyle];
+    }
+
+    /**
+     * Parse and compile a pattern.
+     * @throws IllegalArgumentException if the pattern is malformed
+     */
+    public static RingPattern compile(String source) {
+        Compiler compiler = new Compiler(source);
+        compiler.parseSequence(0, true);
+        if (compiler.mPos < compiler.mTokens.size()) {
+            throw new IllegalArgumentException("unexpected '" + compiler.mTokens.get(compiler.mPos)
+                    + "' in pattern: " + source);
+        }
+        if (compiler.mCmds.isEmpty()) {
+            throw new IllegalArgumentException("empty pattern");
+        }
+
+        int size = compiler.mCmds.size();
+        int[] cmds = new int[size];
+        long[] holdMs = new long[size];
+        for (int i = 0; i < size; i++) {
+            cmds[i] = compiler.mCmds.get(i);
+            holdMs[i] = compiler.mHolds.get(i);
+        }
+        return new RingPattern(source, cmds, holdMs, compiler.mLoopStart);
+    }
+
+    public String getSource() {
+        return mSource;
+    }
+
+    /** Number of steps in the timeline. */
+    public int size() {
+        return mCmds.length;
+    }
+
+    /** The RN41Gpio.CMD_* command of a step. */
+    public int getCmd(int step) {
+        return mCmds[step];
+    }
+
+    /** How long to hold the relay after a step. */
+    public long getHoldMs(int step) {
+        return mHoldMs[step];
+    }
+
+    /**
+     * Index of the step to continue from after the last one, or -1 if the
+     * pattern plays only once.
+     */
+    public int getLoopStart() {
+        return mLoopStart;
+    }
+
+    @Override
+    public String toString() {
+        return mSource;
+    }
+
+    /**
+     * Recursive descent parser that expands the pattern while parsing.
+     */
+    private static class Compiler {
+        private final String mSource;
+        private final List<String> mTokens = new ArrayList<String>();
+        private int mPos = 0;
+
+        private final List<Integer> mCmds = new ArrayList<Integer>();
+        private final List<Long> mHolds = new ArrayList<Long>();
+        private int mLoopStart = -1;
+
+        Compiler(String source) {
+            mSource = source;
+            tokenize(source);
+        }
+
+        private void tokenize(String source) {
+            StringBuilder token = new StringBuilder();
+            for (int i = 0; i < source.length(); i++) {
+                char c = source.charAt(i);
+                if (Character.isWhitespace(c) || c == '[' || c == ']') {
+                    if (token.length() > 0) {
+                        mTokens.add(token.toString());
+                        token.setLength(0);
+                    }
+                    if (c == '[' || c == ']') {
+                        mTokens.add(String.valueOf(c));
+                    }
+                } else {
+                    token.append(Character.toLowerCase(c));
+                }
+            }
+            if (token.length() > 0) {
+                mTokens.add(token.toString());
+            }
+        }
+
+        /**
+         * Parse items until the end of the group or pattern.
+         * @param depth     Nesting depth, 0 at the top level
+         * @param mayLoop   Whether the last item may repeat forever
+         */
+        void parseSequence(int depth, boolean mayLoop) {
+            while (mPos < mTokens.size()) {
+                String token = mTokens.get(mPos);
+                if (token.equals("]")) {
+                    if (depth == 0) {
+                        throw error("unmatched ']'");
+                    }
+                    return;
+                }
+                if (mLoopStart >= 0) {
+                    throw error("nothing may follow a group that repeats forever");
+                }
+                if (token.equals("[")) {
+                    parseGroup(depth, mayLoop);
+                } else {
+                    parseStep(token);
+                }
+            }
+            if (depth > 0) {
+                throw error("missing ']'");
+            }
+        }
+
+        private void parseGroup(int depth, boolean mayLoop) {
+            mPos++;
+            int start = mCmds.size();
+            parseSequence(depth + 1, false);
+            mPos++;     // the ']'
+            int end = mCmds.size();
+            if (end == start) {
+                throw error("empty group");
+            }
+
+            if (mPos >= mTokens.size()) {
+                throw error("group needs a repeat count, e.g. x2 or *");
+            }
+            String repeat = mTokens.get(mPos++);
+            if (repeat.equals("*")) {
+                if (!mayLoop || depth > 0) {
+                    throw error("only the last top-level group may repeat forever");
+                }
+                long loopMs = 0;
+                for (int i = start; i < end; i++) {
+                    loopMs += mHolds.get(i);
+                }
+                if (loopMs < MIN_LOOP_MS) {
+                    throw error("a group that repeats forever must last at least " + MIN_LOOP_MS + " ms");
+                }
+                mLoopStart = start;
+            } else if (repeat.startsWith("x")) {
+                int count = parseNumber(repeat.substring(1));
+                if (count < 1) {
+                    throw error("repeat count must be at least 1");
+                }
+                for (int r = 1; r < count; r++) {
+                    for (int i = start; i < end; i++) {
+                        add(mCmds.get(i), mHolds.get(i));
+                    }
+                }
+            } else {
+                throw error("bad repeat '" + repeat + "'");
+            }
+        }
+
+        private void parseStep(String token) {
+            mPos++;
+            String name = token;
+            long hold = DEFAULT_HOLD_MS;
+            int colon = token.indexOf(':');
+            if (colon >= 0) {
+                name = token.substring(0, colon);
+                hold = parseNumber(token.substring(colon + 1));
+                if (hold < 0) {
+                    throw error("hold must not be negative");
+                }
+            }
+
+            if (name.equals("on")) {
+                add(RN41Gpio.CMD_ON, hold);
+            } else if (name.equals("off")) {
+                add(RN41Gpio.CMD_OFF, hold);
+            } else {
+                throw error("unknown step '" + token + "'");
+            }
+        }
+
+        private void add(int cmd, long hold) {
+            if (mCmds.size() >= MAX_STEPS) {
+                throw error("pattern expands to more than " + MAX_STEPS + " steps");
+            }
+            mCmds.add(cmd);
+            mHolds.add(hold);
+        }
+
+        private int parseNumber(String s) {
+            try {
+                return Integer.parseInt(s);
+            } catch (NumberFormatException e) {
+                throw error("bad number '" + s + "'");
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " in pattern: " + mSource);
+        }
+    }
+}
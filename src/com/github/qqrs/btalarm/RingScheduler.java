@@ -0,0 +1,158 @@
+package com.github.qqrs.btalarm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+/**
+ * Runs ring sequences on long-lived threads, one per lane.
+ *
+ * A lane is named by a key, normally the address of the device the
+ * sequence drives, so every relay board rings on its own thread and a slow
+ * board does not hold up the others. Only one sequence runs per lane:
+ * starting a new one cancels the lane's current sequence, which is
+ * interrupted out of any sleep or reply wait immediately, and the new
+ * sequence runs as soon as the old one has returned. Sequences check their
+ * Token between steps to stop early.
+ */
+public class RingScheduler {
+
+    private static final String TAG = "RingScheduler";
+
+    /**
+     * A cancellable sequence of commands.
+     */
+    public interface Sequence {
+        /**
+         * Run the sequence on the scheduler thread.
+         * @throws InterruptedException when the sequence was cancelled
+         */
+        void run(Token token) throws InterruptedException;
+    }
+
+    /**
+     * Handle for a started sequence, used to cancel it and, from inside the
+     * sequence, to notice that it was cancelled.
+     */
+    public static final class Token {
+        private volatile boolean mCancelled = false;
+        private volatile Future<?> mFuture;
+
+        public void cancel() {
+            mCancelled = true;
+            Future<?> future = mFuture;
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * @throws InterruptedException if the sequence has been cancelled
+         */
+        public void checkCancelled() throws InterruptedException {
+            if (mCancelled || Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException("sequence cancelled");
+            }
+        }
+
+        /** Sleep, returning early by exception if the sequence is cancelled. */
+        public void sleep(long ms) throws InterruptedException {
+            checkCancelled();
+            Thread.sleep(ms);
+        }
+    }
+
+    // Lane used by start(Sequence)
+    public static final String DEFAULT_LANE = "";
+
+    /**
+     * The thread of a lane and its most recently started sequence.
+     */
+    private static final class Lane {
+        final ExecutorService mExecutor;
+        Token mCurrent;
+
+        Lane(final String key) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "RingScheduler " + key);
+                }
+            });
+        }
+    }
+
+    // Lanes by key, guarded by this
+    private final Map<String, Lane> mLanes = new HashMap<String, Lane>();
+
+    /**
+     * Cancel the current sequence of the default lane and start a new one.
+     * @return the token of the new sequence
+     */
+    public Token start(Sequence sequence) {
+        return start(DEFAULT_LANE, sequence);
+    }
+
+    /**
+     * Cancel the current sequence of a lane and start a new one on it.
+     * Sequences on other lanes keep running.
+     * @param key  The lane, e.g. a device address
+     * @return the token of the new sequence
+     */
+    public synchronized Token start(String key, final Sequence sequence) {
+        Lane lane = mLanes.get(key);
+        if (lane == null) {
+            lane = new Lane(key);
+            mLanes.put(key, lane);
+        }
+        if (lane.mCurrent != null) {
+            lane.mCurrent.cancel();
+        }
+
+        final Token token = new Token();
+        token.mFuture = lane.mExecutor.submit(new Runnable() {
+            public void run() {
+                try {
+                    token.checkCancelled();
+                    sequence.run(token);
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "sequence cancelled");
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "sequence failed", e);
+                }
+            }
+        });
+        if (token.mCancelled) {
+            token.mFuture.cancel(true);
+        }
+        lane.mCurrent = token;
+        return token;
+    }
+
+    /** Cancel the current sequence of a lane, if any. */
+    public synchronized void cancel(String key) {
+        Lane lane = mLanes.get(key);
+        if (lane != null && lane.mCurrent != null) {
+            lane.mCurrent.cancel();
+            lane.mCurrent = null;
+        }
+    }
+
+    /** Cancel the current sequences of all lanes. */
+    public synchronized void cancel() {
+        for (Lane lane : mLanes.values()) {
+            if (lane.mCurrent != null) {
+                lane.mCurrent.cancel();
+                lane.mCurrent = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.qqrs.btalarm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream connection to a serial device. BluetoothService drives the
+ * connection through this interface so that the RFCOMM socket can be swapped
+ * for an in-process simulator when no RN41 module is available.
+ */
+public interface SerialTransport {
+
+    /**
+     * Creates an unconnected transport for the device with the given address.
+     */
+    public interface Factory {
+        SerialTransport create(String address) throws IOException;
+    }
+
+    /**
+     * Connect to the remote device. This is a blocking call and will only
+     * return on a successful connection or an exception.
+     */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Close the connection. Any thread blocked in connect() or in a read
+     * from the input stream will receive an IOException.
+     */
+    void close() throws IOException;
+
+    /** Human readable name of the remote device. */
+    String getName();
+
+    /** Short description of the connection type, used for logging. */
+    String getType();
+}
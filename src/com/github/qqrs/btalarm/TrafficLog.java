@@ -0,0 +1,354 @@
+package com.github.qqrs.btalarm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * A fixed-size circular log of everything that went over the Bluetooth
+ * connections and what the alarm did, kept in a memory-mapped file so that
+ * it survives the night and a crash of the app, unlike logcat.
+ *
+ * The file is a HEADER_SIZE header followed by SLOTS records of SLOT_SIZE
+ * bytes each; record n goes into slot n % SLOTS, overwriting the oldest.
+ * A record is:
+ *
+ *   0  long   sequence number n
+ *   8  long   wall clock time, ms
+ *  16  long   System.nanoTime(), for intervals shorter than a ms
+ *  24  byte   type, one of the TYPE_* values
+ *  25  byte   number of payload bytes stored
+ *  26  short  length of the original payload
+ *  28  int    argument, e.g. the new state or a command
+ *  32  6      device address, or zeros
+ *  38  22     payload, truncated to fit
+ *  60  int    commit marker, (int) n ^ COMMIT_MAGIC
+ *
+ * Appending takes a sequence number with one atomic increment and writes
+ * the record into its own slot, so writers never wait for each other and
+ * nothing is allocated. The commit marker is cleared first and written
+ * last, so a record that was being written when the process died is
+ * recognised and skipped by the decoder. Nothing is synced explicitly; the
+ * kernel writes the dirty pages back even if the process is killed.
+ */
+public class TrafficLog {
+
+    private static final String TAG = "TrafficLog";
+
+    public static final String FILE_NAME = "traffic.bin";
+
+    // Record types
+    public static final int TYPE_STATE = 1;     // arg: new state
+    public static final int TYPE_READ = 2;      // payload: bytes read
+    public static final int TYPE_WRITE = 3;     // payload: bytes written
+    public static final int TYPE_COMMAND = 4;   // arg: RN41Gpio command, payload: "ok" or "failed"
+    public static final int TYPE_ERROR = 5;     // payload: message
+    public static final int TYPE_ALARM = 6;     // payload: alarm action
+    public static final int TYPE_GPIO = 7;      // arg: new pin values
+
+    private static final int MAGIC = 0x42544c47;   // "BTLG"
+    private static final int VERSION = 1;
+    private static final int COMMIT_MAGIC = 0x5a5aa5a5;
+
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_SIZE = 64;
+    static final int SLOTS = 4096;
+    private static final int PAYLOAD_SIZE = 22;
+
+    // Record field offsets
+    private static final int SEQ = 0;
+    private static final int TIME = 8;
+    private static final int NANOS = 16;
+    private static final int TYPE = 24;
+    private static final int STORED = 25;
+    private static final int LENGTH = 26;
+    private static final int ARG = 28;
+    private static final int ADDRESS = 32;
+    private static final int PAYLOAD = 38;
+    private static final int COMMIT = 60;
+
+    private static final byte[] OK = "ok".getBytes();
+    private static final byte[] FAILED = "failed".getBytes();
+
+    private static volatile TrafficLog sInstance;
+
+    private final MappedByteBuffer mBuffer;
+    private final AtomicLong mNextSeq;
+
+    private TrafficLog(MappedByteBuffer buffer, long nextSeq) {
+        mBuffer = buffer;
+        mNextSeq = new AtomicLong(nextSeq);
+    }
+
+    /**
+     * Map the log file, creating it if needed, and make it the log that
+     * the static methods append to. Until this is called they do nothing.
+     */
+    public static synchronized void open(File file) {
+        if (sInstance != null) {
+            return;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            long size = HEADER_SIZE + (long) SLOT_SIZE * SLOTS;
+            boolean fresh = raf.length() != size;
+            if (fresh) {
+                raf.setLength(size);
+            }
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (fresh || !isValid(buffer)) {
+                clear(buffer);
+            }
+            sInstance = new TrafficLog(buffer, lastSeq(buffer) + 1);
+        } catch (IOException e) {
+            Log.e(TAG, "unable to open " + file, e);
+        } finally {
+            // The mapping stays valid after the file is closed
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of " + file + " failed", e);
+                }
+            }
+        }
+    }
+
+    private static boolean isValid(ByteBuffer buffer) {
+        return buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION
+                && buffer.getInt(8) == SLOT_SIZE && buffer.getInt(12) == SLOTS;
+    }
+
+    private static void clear(ByteBuffer buffer) {
+        for (int i = 0; i < SLOTS; i++) {
+            buffer.putInt(HEADER_SIZE + i * SLOT_SIZE + COMMIT, 0);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, SLOT_SIZE);
+        buffer.putInt(12, SLOTS);
+    }
+
+    /** The highest committed sequence number, or -1 if there is none. */
+    private static long lastSeq(ByteBuffer buffer) {
+        long last = -1;
+        for (int i = 0; i < SLOTS; i++) {
+            int base = HEADER_SIZE + i * SLOT_SIZE;
+            if (isCommitted(buffer, base)) {
+                last = Math.max(last, buffer.getLong(base + SEQ));
+            }
+        }
+        return last;
+    }
+
+    private static boolean isCommitted(ByteBuffer buffer, int base) {
+        long seq = buffer.getLong(base + SEQ);
+        return seq >= 0 && seq % SLOTS == (base - HEADER_SIZE) / SLOT_SIZE
+                && buffer.getInt(base + COMMIT) == ((int) seq ^ COMMIT_MAGIC);
+    }
+
+    /** Log a connection state change. */
+    public static void state(String address, int state) {
+        TrafficLog log = sInstance;
+        if (log != null) {
+            log.append(TYPE_STATE, state, address, null, 0, 0);
+        }
+    }
+
+    /** Log a change of a device's GPIO pins. */
+    public static void gpio(String address, int values) {
+        TrafficLog log = sInstance;
+        if (log != null) {
+            log.append(TYPE_GPIO, values, address, null, 0, 0);
+        }
+    }
+
+    /** Log bytes read from or written to a device. */
+    public static void data(int type, String address, byte[] data, int offset, int length) {
+        TrafficLog log = sInstance;
+        if (log != null) {
+            log.append(type, 0, address, data, offset, length);
+        }
+    }
+
+    /** Log the outcome of an RN41 command. */
+    public static void command(String address, int cmd, boolean ok) {
+        TrafficLog log = sInstance;
+        if (log != null) {
+            byte[] result = ok ? OK : FAILED;
+            log.append(TYPE_COMMAND, cmd, address, result, 0, result.length);
+        }
+    }
+
+    /** Log an error or an alarm event with a short text. */
+    public static void event(int type, String address, String text) {
+        TrafficLog log = sInstance;
+        if (log != null) {
+            byte[] bytes = text.getBytes();
+            log.append(type, 0, address, bytes, 0, bytes.length);
+        }
+    }
+
+    private void append(int type, int arg, String address, byte[] data, int offset, int length) {
+        long seq = mNextSeq.getAndIncrement();
+        int base = HEADER_SIZE + (int) (seq % SLOTS) * SLOT_SIZE;
+        int stored = Math.min(length, PAYLOAD_SIZE);
+        ByteBuffer b = mBuffer;
+
+        // Absolute puts only, so concurrent writers to other slots do not
+        // interfere through the buffer's position
+        b.putInt(base + COMMIT, 0);
+        b.putLong(base + SEQ, seq);
+        b.putLong(base + TIME, System.currentTimeMillis());
+        b.putLong(base + NANOS, System.nanoTime());
+        b.put(base + TYPE, (byte) type);
+        b.put(base + STORED, (byte) stored);
+        b.putShort(base + LENGTH, (short) Math.min(length, Short.MAX_VALUE));
+        b.putInt(base + ARG, arg);
+        putAddress(b, base + ADDRESS, address);
+        for (int i = 0; i < stored; i++) {
+            b.put(base + PAYLOAD + i, data[offset + i]);
+        }
+        b.putInt(base + COMMIT, (int) seq ^ COMMIT_MAGIC);
+    }
+
+    /**
+     * Store "00:11:22:33:44:55" as six bytes without allocating.
+     */
+    private static void putAddress(ByteBuffer b, int index, String address) {
+        for (int i = 0; i < 6; i++) {
+            int value = 0;
+            if (address != null && address.length() >= i * 3 + 2) {
+                value = (Character.digit(address.charAt(i * 3), 16) << 4)
+                        | Character.digit(address.charAt(i * 3 + 1), 16);
+            }
+            b.put(index + i, (byte) value);
+        }
+    }
+
+    /**
+     * Decode a log file into text, one line per record, oldest first.
+     */
+    public static String decode(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return decode(buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    static String decode(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE + SLOT_SIZE * SLOTS || !isValid(buffer)) {
+            return "not a traffic log\n";
+        }
+
+        List<Integer> slots = new ArrayList<Integer>();
+        int torn = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            int base = HEADER_SIZE + i * SLOT_SIZE;
+            if (isCommitted(buffer, base)) {
+                slots.add(base);
+            } else if (buffer.getLong(base + SEQ) != 0 || buffer.getInt(base + COMMIT) != 0) {
+                torn++;
+            }
+        }
+        final ByteBuffer b = buffer;
+        Collections.sort(slots, new Comparator<Integer>() {
+            public int compare(Integer lhs, Integer rhs) {
+                long l = b.getLong(lhs + SEQ);
+                long r = b.getLong(rhs + SEQ);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        StringBuilder sb = new StringBuilder();
+        sb.append(slots.size()).append(" records");
+        if (torn > 0) {
+            sb.append(", ").append(torn).append(" incomplete");
+        }
+        sb.append('\n');
+        for (int base : slots) {
+            decodeRecord(b, base, format, sb);
+        }
+        return sb.toString();
+    }
+
+    private static void decodeRecord(ByteBuffer b, int base, SimpleDateFormat format, StringBuilder sb) {
+        int type = b.get(base + TYPE);
+        int stored = b.get(base + STORED) & 0xff;
+        int length = b.getShort(base + LENGTH);
+        int arg = b.getInt(base + ARG);
+
+        sb.append(b.getLong(base + SEQ)).append(' ');
+        sb.append(format.format(new Date(b.getLong(base + TIME)))).append(' ');
+        for (int i = 0; i < 6; i++) {
+            if (i > 0) {
+                sb.append(':');
+            }
+            sb.append(String.format("%02X", b.get(base + ADDRESS + i) & 0xff));
+        }
+        sb.append(' ').append(typeName(type));
+        if (type == TYPE_STATE || type == TYPE_COMMAND) {
+            sb.append(' ').append(arg);
+        } else if (type == TYPE_GPIO) {
+            sb.append(' ').append(String.format("%02X", arg));
+        }
+        if (stored > 0) {
+            sb.append(" \"");
+            for (int i = 0; i < stored; i++) {
+                int c = b.get(base + PAYLOAD + i) & 0xff;
+                if (c >= 0x20 && c < 0x7f && c != '\\' && c != '"') {
+                    sb.append((char) c);
+                } else if (c == '\r') {
+                    sb.append("\\r");
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(String.format("\\x%02x", c));
+                }
+            }
+            sb.append('"');
+            if (length > stored) {
+                sb.append(" +").append(length - stored).append(" bytes");
+            }
+        }
+        sb.append('\n');
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+        case TYPE_STATE:
+            return "STATE";
+        case TYPE_READ:
+            return "READ";
+        case TYPE_WRITE:
+            return "WRITE";
+        case TYPE_COMMAND:
+            return "COMMAND";
+        case TYPE_ERROR:
+            return "ERROR";
+        case TYPE_ALARM:
+            return "ALARM";
+        case TYPE_GPIO:
+            return "GPIO";
+        }
+        return "TYPE" + type;
+    }
+}
@@ -0,0 +1,187 @@
+package com.github.qqrs.btalarm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import android.util.Log;
+
+/**
+ * A bounded queue of writes to one connection, drained by its own writer
+ * thread so that callers never block on the socket.
+ *
+ * Adjacent small writes that are waiting in the queue together are joined
+ * into one socket write of up to COALESCE_LIMIT bytes. The RN41 escape
+ * sequence "$$$" is never joined with anything, since the module only
+ * recognises it when it arrives on its own. When CAPACITY writes are
+ * already waiting, write() refuses the new one instead of waiting.
+ *
+ * Every write is reported exactly once to its callback: as sent, on the
+ * writer thread, or as failed if it was refused, the socket write failed
+ * or the queue was closed first.
+ */
+public class WriteQueue {
+
+    private static final String TAG = "WriteQueue";
+
+    public static final int CAPACITY = 32;
+    public static final int COALESCE_LIMIT = 64;
+
+    /**
+     * Told when a write has been sent or has failed.
+     */
+    public interface Callback {
+        /**
+         * @param data     The bytes passed to write()
+         * @param success  Whether they were written to the socket
+         */
+        void onWriteComplete(byte[] data, boolean success);
+    }
+
+    private static final class Request {
+        final byte[] mData;
+        final Callback mCallback;
+
+        Request(byte[] data, Callback callback) {
+            mData = data;
+            mCallback = callback;
+        }
+    }
+
+    private final OutputStream mOut;
+    private final Callback mSentCallback;
+    private final ArrayBlockingQueue<Request> mQueue = new ArrayBlockingQueue<Request>(CAPACITY);
+    private volatile boolean mClosed = false;
+    private Thread mThread;
+
+    /**
+     * @param out           The stream to write to
+     * @param sentCallback  Also told about every write that was sent, or null
+     */
+    public WriteQueue(OutputStream out, Callback sentCallback) {
+        mOut = out;
+        mSentCallback = sentCallback;
+    }
+
+    /** Start the writer thread. */
+    public synchronized void start(String name) {
+        mThread = new Thread(name) {
+            public void run() {
+                drain();
+            }
+        };
+        mThread.start();
+    }
+
+    /**
+     * Queue bytes to be written without blocking.
+     * @param data      The bytes to write; must not be modified afterwards
+     * @param callback  Told when the bytes have been written, or null
+     * @return false if the queue is full or closed; the callback is told
+     */
+    public boolean write(byte[] data, Callback callback) {
+        Request request = new Request(data, callback);
+        if (mClosed || !mQueue.offer(request)) {
+            if (!mClosed) {
+                Log.w(TAG, "write queue full, dropping " + data.length + " bytes");
+            }
+            complete(request, false);
+            return false;
+        }
+        if (mClosed) {
+            // Raced with close(), fail whatever it did not see
+            failPending();
+            return false;
+        }
+        return true;
+    }
+
+    /** Number of writes waiting to be sent. */
+    public int size() {
+        return mQueue.size();
+    }
+
+    /**
+     * Stop the writer thread and fail all writes that are still queued.
+     * A socket write in progress is only interrupted by closing the socket.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+        failPending();
+    }
+
+    private void drain() {
+        List<Request> batch = new ArrayList<Request>();
+        byte[] scratch = new byte[COALESCE_LIMIT];
+        try {
+            while (!mClosed) {
+                Request first = mQueue.take();
+                batch.add(first);
+                int length = first.mData.length;
+
+                // Join the writes that are already waiting behind it
+                if (!isEscape(first.mData)) {
+                    Request next;
+                    while ((next = mQueue.peek()) != null && !isEscape(next.mData)
+                            && length + next.mData.length <= COALESCE_LIMIT) {
+                        mQueue.poll();
+                        batch.add(next);
+                        length += next.mData.length;
+                    }
+                }
+
+                if (batch.size() == 1) {
+                    mOut.write(first.mData);
+                } else {
+                    int offset = 0;
+                    for (int i = 0; i < batch.size(); i++) {
+                        byte[] data = batch.get(i).mData;
+                        System.arraycopy(data, 0, scratch, offset, data.length);
+                        offset += data.length;
+                    }
+                    mOut.write(scratch, 0, length);
+                }
+
+                for (int i = 0; i < batch.size(); i++) {
+                    complete(batch.get(i), true);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            Log.e(TAG, "Exception during write", e);
+            mClosed = true;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            complete(batch.get(i), false);
+        }
+        failPending();
+    }
+
+    private void failPending() {
+        Request request;
+        while ((request = mQueue.poll()) != null) {
+            complete(request, false);
+        }
+    }
+
+    private void complete(Request request, boolean success) {
+        if (success && mSentCallback != null) {
+            mSentCallback.onWriteComplete(request.mData, true);
+        }
+        if (request.mCallback != null) {
+            request.mCallback.onWriteComplete(request.mData, success);
+        }
+    }
+
+    private static boolean isEscape(byte[] data) {
+        return data.length == 3 && data[0] == '$' && data[1] == '$' && data[2] == '$';
+    }
+}